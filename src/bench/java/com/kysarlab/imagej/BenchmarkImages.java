@@ -0,0 +1,87 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package com.kysarlab.imagej;
+
+import java.io.File;
+import java.util.Random;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+// Inputs of the benchmarks. The synthetic images are generated with a fixed seed,
+// so that results can be compared from one commit to the next.
+final class BenchmarkImages {
+
+	private BenchmarkImages() {}
+
+	// Stack of a bright membrane whose height changes slowly across the image, plus noise.
+	// Values go up to the top of the type (1.0 for 32-bit).
+	static ImagePlus membrane(int size, int slices, int bitDepth) {
+		Random random = new Random(42);
+		double top = bitDepth == 8 ? 255 : bitDepth == 16 ? 65535 : 1.0;
+		ImageStack stack = new ImageStack(size, size);
+		for (int s=0; s < slices; s++) {
+			ImageProcessor ip = bitDepth == 8 ? new ByteProcessor(size, size)
+				: bitDepth == 16 ? new ShortProcessor(size, size) : new FloatProcessor(size, size);
+			for (int j=0; j < size; j++) {
+				for (int i=0; i < size; i++) {
+					double z = height(i, j, size, slices);
+					double v = 0.8*Math.exp(-(s-z)*(s-z)/4.0) + 0.1*random.nextDouble();
+					ip.putPixelValue(i, j, v*top);
+				}
+			}
+			stack.addSlice(ip);
+		}
+		ImagePlus imp = new ImagePlus("membrane", stack);
+		imp.getCalibration().pixelWidth = 0.5;
+		imp.getCalibration().pixelDepth = 0.8;
+		return imp;
+	}
+
+	// 32-bit height image of the same surface, with a background (0) outside a disk
+	static ImagePlus heightMap(int size) {
+		Random random = new Random(42);
+		FloatProcessor ip = new FloatProcessor(size, size);
+		double r2 = 0.16*size*size;
+		for (int j=0; j < size; j++) {
+			for (int i=0; i < size; i++) {
+				double dx = i - size/2.0, dy = j - size/2.0;
+				boolean inside = dx*dx + dy*dy < r2;
+				ip.setf(i, j, inside ? (float) (height(i, j, size, 32) + 0.05*random.nextDouble()) : 0.0f);
+			}
+		}
+		ImagePlus imp = new ImagePlus("height", ip);
+		imp.getCalibration().pixelWidth = 0.5;
+		imp.getCalibration().pixelDepth = 0.8;
+		return imp;
+	}
+
+	// n random values in [0, top), for the kernels that work on raw arrays
+	static float[] noise(int n, double top) {
+		Random random = new Random(42);
+		float[] values = new float[n];
+		for (int k=0; k < n; k++) values[k] = (float) (top*random.nextDouble());
+		return values;
+	}
+
+	// One of the sample images of src/main/resources
+	static ImagePlus sample(String name) {
+		File file = new File(BenchmarkImages.class.getResource("/" + name).getFile());
+		return IJ.openImage(file.getAbsolutePath());
+	}
+
+	private static double height(int i, int j, int size, int slices) {
+		return slices/2.0 + 0.15*slices*Math.sin(6.0*i/size) * Math.cos(4.0*j/size);
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package com.kysarlab.imagej;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImagePlus;
+
+// Curvature maps: satellite points (SateliteCurvature) and gradient based
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CurvatureBenchmark {
+
+	@Param({"512", "2048"})
+	int size;
+
+	@Param({"Satelite Points", "Gradient Based"})
+	String method;
+
+	@Param({"1", "4"})
+	int threads;
+
+	private ImagePlus image;
+
+	@Setup
+	public void setup() {
+		image = BenchmarkImages.heightMap(size);
+	}
+
+	@Benchmark
+	public ImagePlus curvature() {
+		return new Curvature().process(image, "method=[" + method + "] pixel=20 gradient=2 threads=" + threads);
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package com.kysarlab.imagej;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImagePlus;
+
+// Flatten_Membrane: average height pass, then the shift/interpolate bands
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FlattenMembraneBenchmark {
+
+	@Param({"256", "1024"})
+	int size;
+
+	@Param({"Linear", "Monotone Cubic", "Akima"})
+	String interpolation;
+
+	@Param({"1", "4"})
+	int threads;
+
+	private ImagePlus stack;
+
+	@Setup
+	public void setup() {
+		stack = BenchmarkImages.membrane(size, 32, 32);
+	}
+
+	@Benchmark
+	public ImagePlus flatten() {
+		return new Flatten_Membrane().process(stack, "interpolation=[" + interpolation
+			+ "] minimum=0.1 maximum=1 standard=10 threads=" + threads);
+	}
+}
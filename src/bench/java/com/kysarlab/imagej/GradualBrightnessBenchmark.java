@@ -0,0 +1,55 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package com.kysarlab.imagej;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImagePlus;
+
+// Gradual_Brightness normalization of every slice
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GradualBrightnessBenchmark {
+
+	@Param({"512"})
+	int size;
+
+	@Param({"8", "16", "32"})
+	int bitDepth;
+
+	private ImagePlus stack;
+
+	@Setup
+	public void setup() {
+		stack = BenchmarkImages.membrane(size, 32, bitDepth);
+	}
+
+	@Benchmark
+	public ImagePlus normalize() {
+		double top = bitDepth == 8 ? 255 : bitDepth == 16 ? 65535 : 1.0;
+		return new Gradual_Brightness().process(stack, "fitting=[Linear: A + Bx] a=0 b=" + (0.01*top)
+			+ " max=" + (0.5*top));
+	}
+}
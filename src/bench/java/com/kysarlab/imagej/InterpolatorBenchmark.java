@@ -0,0 +1,72 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package com.kysarlab.imagej;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Column interpolation of Flatten_Membrane for each method, over the pixels of one tile.
+// The columns repeat every COLUMNS pixels, so that they stay in cache.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InterpolatorBenchmark {
+
+	private static final int COLUMNS = 256;
+
+	@Param({"Linear", "Monotone Cubic", "Catmull-Rom", "Akima"})
+	String method;
+
+	@Param({"32"})
+	int slices;
+
+	@Param({"65536"})
+	int pixels;
+
+	private Interpolator interpolator;
+	private double[][] columns;
+	private double[] alphas;
+	private float[][] out;
+
+	@Setup
+	public void setup() {
+		interpolator = Interpolator.create(method, slices);
+		float[] noise = BenchmarkImages.noise(COLUMNS*(slices+1), 1.0);
+		columns = new double[COLUMNS][slices];
+		alphas = new double[COLUMNS];
+		for (int c=0; c < COLUMNS; c++) {
+			for (int k=0; k < slices; k++) columns[c][k] = noise[c*(slices+1) + k];
+			alphas[c] = noise[c*(slices+1) + slices];
+		}
+		out = new float[slices-1][pixels];
+	}
+
+	@Benchmark
+	public float[][] interpolate() {
+		for (int idx=0; idx < pixels; idx++) {
+			int c = idx % COLUMNS;
+			interpolator.interpolate(columns[c], alphas[c], out, idx);
+		}
+		return out;
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package com.kysarlab.imagej;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImagePlus;
+
+// Make_PLY encoding of a height image into a temporary file
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MakePLYBenchmark {
+
+	@Param({"512", "2048"})
+	int size;
+
+	@Param({"Binary Little Endian", "ASCII"})
+	String format;
+
+	@Param({"Full resolution", "Adaptive (quadtree)"})
+	String mesh;
+
+	private ImagePlus image;
+	private File file;
+
+	@Setup
+	public void setup() throws IOException {
+		image = BenchmarkImages.heightMap(size);
+		file = File.createTempFile("benchmark", ".ply");
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public File makePLY() throws IOException {
+		return new Make_PLY().process(image, "ply=[" + format + "] threads=4 mesh=[" + mesh
+			+ "] height=0.01 save=[" + file.getPath() + "]");
+	}
+}
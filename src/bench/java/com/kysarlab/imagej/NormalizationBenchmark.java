@@ -0,0 +1,85 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package com.kysarlab.imagej;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Per slice kernels of Gradual_Brightness on one slice: the float normalization, and
+// the lookup tables of 8 and 16-bit slices (built, then applied)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NormalizationBenchmark {
+
+	@Param({"1024"})
+	int size;
+
+	private float[] floats, float_result;
+	private byte[] bytes, byte_result;
+	private short[] shorts, short_result;
+	private int[] lut8, lut16;
+
+	@Setup
+	public void setup() {
+		int n = size*size;
+		floats = BenchmarkImages.noise(n, 1.0);
+		float_result = new float[n];
+		bytes = new byte[n];
+		shorts = new short[n];
+		for (int k=0; k < n; k++) {
+			bytes[k] = (byte) (floats[k]*256);
+			shorts[k] = (short) (floats[k]*65536);
+		}
+		byte_result = new byte[n];
+		short_result = new short[n];
+		lut8 = new int[256];
+		lut16 = new int[65536];
+	}
+
+	@Benchmark
+	public float[] normalizeFloat() {
+		Gradual_Brightness.normalizeFloat(floats, float_result, 0.1, 0.7);
+		return float_result;
+	}
+
+	@Benchmark
+	public int[] buildTable16() {
+		Gradual_Brightness.buildTable(lut16, 6553.5, 45874.5);
+		return lut16;
+	}
+
+	@Benchmark
+	public byte[] table8() {
+		Gradual_Brightness.buildTable(lut8, 25.5, 178.5);
+		Gradual_Brightness.applyTable(bytes, byte_result, lut8);
+		return byte_result;
+	}
+
+	@Benchmark
+	public short[] table16() {
+		Gradual_Brightness.buildTable(lut16, 6553.5, 45874.5);
+		Gradual_Brightness.applyTable(shorts, short_result, lut16);
+		return short_result;
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package com.kysarlab.imagej;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Passes of the recursive blur on one image, filtered in place over and over (the cost
+// does not depend on the values): the rows, the columns, and both with blur
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RecursiveGaussianBenchmark {
+
+	@Param({"1024"})
+	int size;
+
+	@Param({"10"})
+	double sigma;
+
+	private RecursiveGaussian gaussian;
+	private ParallelBands bands;
+	private float[] image;
+	private double[] p1, p2, p3;
+
+	@Setup
+	public void setup() {
+		gaussian = new RecursiveGaussian(sigma);
+		bands = new ParallelBands(1);
+		image = BenchmarkImages.noise(size*size, 1.0);
+		p1 = new double[size];
+		p2 = new double[size];
+		p3 = new double[size];
+	}
+
+	@TearDown
+	public void tearDown() {
+		bands.shutdown();
+	}
+
+	@Benchmark
+	public float[] rows() {
+		for (int j=0; j < size; j++) gaussian.filterRow(image, j*size, size);
+		return image;
+	}
+
+	@Benchmark
+	public float[] columns() {
+		gaussian.filterLines(image, 0, size, size, size, p1, p2, p3);
+		return image;
+	}
+
+	@Benchmark
+	public float[] blur() {
+		RecursiveGaussian.blur(new float[][] {image}, size, size, sigma, bands);
+		return image;
+	}
+}
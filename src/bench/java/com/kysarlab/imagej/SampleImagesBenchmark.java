@@ -0,0 +1,78 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package com.kysarlab.imagej;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImagePlus;
+
+// The plugins on the sample images of src/main/resources
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SampleImagesBenchmark {
+
+	private ImagePlus flattening, circles, height;
+	private File file;
+
+	@Setup
+	public void setup() throws IOException {
+		flattening = BenchmarkImages.sample("TestFlattening.tif");
+		circles = BenchmarkImages.sample("Circles_smudge.tif");
+		height = BenchmarkImages.sample("avg-height-example.tif");
+		file = File.createTempFile("benchmark", ".ply");
+	}
+
+	@TearDown
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Benchmark
+	public ImagePlus averageHeight() {
+		return new Average_Height().process(flattening);
+	}
+
+	@Benchmark
+	public ImagePlus flattenMembrane() {
+		return new Flatten_Membrane().process(flattening, "interpolation=[Monotone Cubic] minimum=10 maximum=255 standard=10");
+	}
+
+	@Benchmark
+	public ImagePlus smoothNoBleed() {
+		return new Smooth_NoBleed().process(circles, "background=0 number=4 standard=10");
+	}
+
+	@Benchmark
+	public ImagePlus curvature() {
+		return new Curvature().process(height, "method=[Satelite Points] pixel=3");
+	}
+
+	@Benchmark
+	public File makePLY() throws IOException {
+		return new Make_PLY().process(height, "ply=[Binary Little Endian] save=[" + file.getPath() + "]");
+	}
+}
@@ -0,0 +1,68 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package com.kysarlab.imagej;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Satellite radius of Curvature along one row, without the rest of the plugin: the
+// radii kernel over the interior, and the clamped tables over the whole row
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SatelitesBenchmark {
+
+	@Param({"2048"})
+	int size;
+
+	@Param({"4", "20"})
+	int range;
+
+	private Curvature.Satelites satelites;
+	private double[] line;
+	private double[] r;
+
+	@Setup
+	public void setup() {
+		satelites = new Curvature.Satelites(size, range, 0.5);
+		float[] noise = BenchmarkImages.noise(size, 10.0);
+		line = new double[size];
+		for (int k=0; k < size; k++) line[k] = noise[k];
+		r = new double[size];
+	}
+
+	@Benchmark
+	public double[] radii() {
+		int first = satelites.first, n = satelites.last - first;
+		satelites.radii(line, first-range, line, first, line, first+range, r, first, n);
+		return r;
+	}
+
+	@Benchmark
+	public double[] clampedRadius() {
+		for (int k=0; k < size; k++) {
+			r[k] = satelites.radius(k, line[satelites.min[k]], line[satelites.mid[k]], line[satelites.max[k]]);
+		}
+		return r;
+	}
+}
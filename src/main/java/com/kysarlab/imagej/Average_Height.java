@@ -11,12 +11,13 @@ package com.kysarlab.imagej;
 import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.measure.Calibration;
 import ij.plugin.PlugIn;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
-import ij.process.ImageConverter;
+import ij.util.Tools;
 
 public class Average_Height implements PlugIn {
 	private ImagePlus imp;
@@ -25,15 +26,77 @@ public class Average_Height implements PlugIn {
 	private int w, h;
 	private double pD;
 
+	// Threads used to accumulate the slices
+	private int n_threads = Prefs.getThreads();
+
+	public void setThreads(int n_threads) {
+		this.n_threads = Math.max(n_threads, 1);
+	}
+
+	// Pixels read at once from a slice by addSlice
+	private static final int CHUNK = 4096;
+
+	// Add pixels [start,end) of slice to the sum and sum x height. The pixels are read
+	// through the slice view, in chunks, so the stack never has to be converted;
+	// 32-bit slices are added straight from their pixels.
+	private void addSlice(SliceView view, int s, float[] si_pixels, float[] sixh_pixels, int start, int end) {
+		float[] pixels = view.floatPixels();
+		if (pixels != null) {
+			add(pixels, 0, s, si_pixels, sixh_pixels, start, end);
+			return;
+		}
+		float[] values = new float[Math.min(CHUNK, end-start)];
+		for (int c=start; c < end; c+=CHUNK) {
+			int c1 = Math.min(c+CHUNK, end);
+			view.read(c, c1, values);
+			add(values, c, s, si_pixels, sixh_pixels, c, c1);
+		}
+	}
+
+	// Add values[idx-offset] for the pixels idx in [start,end)
+	private void add(float[] values, int offset, int s, float[] si_pixels, float[] sixh_pixels, int start, int end) {
+		for (int idx=start; idx < end; idx++) {
+			float val = values[idx-offset];
+			si_pixels[idx] += val;
+			sixh_pixels[idx] += val*pD*(s-1);
+		}
+	}
+
 	// When you click the button
     public void run(String arg) {
 		
 		// Get the current image
 		imp = WindowManager.getCurrentImage();
+		if (imp == null) {IJ.noImage(); return;}
+
+		process(imp, Parameters.getOptions(arg)).show();
+	}
 
-		// Convert to Gray32 and get pixel scale
-		ImageConverter ic = new ImageConverter(imp);
-		ic.convertToGray32();
+	/**
+	 * Computes the average height of a stack without showing any window.
+	 *
+	 * @param imp the stack
+	 * @param options there is no dialog, the only option is the number of threads
+	 *   (e.g. "threads=4"); without it, the threads set with setThreads are used
+	 * @return the average height image
+	 */
+	public ImagePlus process(ImagePlus imp, String options) {
+		String threads = Parameters.getValue(options, "threads", null);
+		if (threads != null) setThreads((int) Tools.parseDouble(threads, n_threads));
+		return process(imp);
+	}
+
+	/**
+	 * Computes the average height of a stack without showing any window.
+	 *
+	 * @param imp the stack
+	 * @return the average height image
+	 */
+	public ImagePlus process(ImagePlus imp) {
+		this.imp = imp;
+
+		// Get pixel scale. Density calibrated 8/16-bit stacks are read through the
+		// calibration table (by the slice views), as the 32-bit conversion would have done.
 		Calibration cal = imp.getCalibration();
 		pD=cal.pixelDepth;
 		// pW=cal.pixelWidth;
@@ -49,25 +112,24 @@ public class Average_Height implements PlugIn {
 		float[] sixh_pixels = new float[w * h];
 		float[] h_pixels = new float[w * h];
 
-		// Process the average height algorithm
-		int idx = 0;
-		for (int s=1; s < NSl+1; s++) {
-			IJ.showProgress(s, NSl);
-			// FloatProcessor slice_p = imp.getStack().getProcessor(s).convertToFloatProcessor();
-			ImageProcessor slice_p = imp.getStack().getProcessor(s);
-			float[] slice_pixels = (float[]) slice_p.getPixels();
-
-			// Add pixels of slice to the sum and sum x height
-			for (int j=0; j < h; j++) {
-				for (int i=0; i < w; i++) {
-					idx = i + j * w;
-					si_pixels[idx] += slice_pixels[idx];
-					sixh_pixels[idx] += slice_pixels[idx]*pD*(s-1);
-				}
+		// Process the average height algorithm, one slice in memory at a time
+		// (virtual stacks only load the slice that is requested). Each thread
+		// owns a band of pixels, so the sums need no synchronization.
+		ParallelBands bands = new ParallelBands(n_threads);
+		try {
+			for (int s=1; s < NSl+1; s++) {
+				IJ.showProgress(s, NSl);
+				SliceView view = SliceView.of(imp, s);
+				int slice = s;
+				bands.run(w * h, bands.getThreads(), (start, end) ->
+					addSlice(view, slice, si_pixels, sixh_pixels, start, end));
 			}
+		} finally {
+			bands.shutdown();
 		}
 
 		// Divide pixels of sum x height by sum
+		int idx = 0;
 		for (int j=0; j < h; j++) {
 			for (int i=0; i < w; i++) {
 				idx = i + j * w;
@@ -78,10 +140,12 @@ public class Average_Height implements PlugIn {
 				}
 			}
 		}
+		Calibration h_cal = cal.copy();
+		h_cal.disableDensityCalibration();
 		ImageProcessor avg_h_ip = new FloatProcessor(w,h,h_pixels);
 		ImagePlus avg_height = new ImagePlus("Average Height",avg_h_ip);
-		avg_height.setCalibration(cal);
-		avg_height.show();
+		avg_height.setCalibration(h_cal);
+		return avg_height;
 	}
 
 	public void showAbout() {
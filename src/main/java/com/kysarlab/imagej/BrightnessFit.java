@@ -0,0 +1,140 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package com.kysarlab.imagej;
+
+import java.util.Arrays;
+
+import ij.ImageStack;
+
+// Estimates the A and B coefficients of the Gradual_Brightness curves from the stack:
+// a percentile of the pixel values is measured on some slices, spread over the stack,
+// and the curve is fitted to it by least squares. The Exponential and Power curves are
+// fitted on the logarithms, so only the slices with a positive percentile count for them.
+// The slices are only read, and only a subsample of their pixels.
+class BrightnessFit {
+
+	// Slices and pixels per slice sampled at most
+	static final int MAX_SLICES = 64;
+	static final int MAX_PIXELS = 1 << 16;
+
+	private BrightnessFit() {}
+
+	// Slice numbers (1-based) sampled in a stack of n slices, first and last included
+	static int[] sampleSlices(int n) {
+		int m = Math.min(n, MAX_SLICES);
+		int[] slices = new int[m];
+		for (int k=0; k < m; k++) {
+			slices[k] = m == 1 ? 1 : 1 + (int) Math.round((double) k*(n-1)/(m-1));
+		}
+		return slices;
+	}
+
+	// Percentile (0-100) of the raw pixel values of each of the slices (RGB: mean of the channels)
+	static double[] percentiles(ImageStack stack, int[] slices, double percentile, ParallelBands bands) {
+		double[] values = new double[slices.length];
+		bands.run(slices.length, bands.defaultBands(slices.length), (k0, k1) -> {
+			int[] histogram = null;
+			for (int k=k0; k < k1; k++) {
+				// A virtual stack is not thread-safe: its slices are read one at a time
+				Object pixels;
+				synchronized (stack) {
+					pixels = stack.getPixels(slices[k]);
+				}
+				if (pixels instanceof byte[] || pixels instanceof short[]) {
+					int range = pixels instanceof byte[] ? 256 : 65536;
+					if (histogram == null || histogram.length != range) histogram = new int[range];
+					values[k] = histogramPercentile(pixels, histogram, percentile);
+				} else {
+					values[k] = samplePercentile(pixels, percentile);
+				}
+			}
+		});
+		return values;
+	}
+
+	// Counting histogram of the subsample, for 8 and 16-bit slices
+	private static double histogramPercentile(Object pixels, int[] histogram, double percentile) {
+		Arrays.fill(histogram, 0);
+		int size = pixels instanceof byte[] ? ((byte[]) pixels).length : ((short[]) pixels).length;
+		int step = step(size);
+		int n = 0;
+		if (pixels instanceof byte[]) {
+			byte[] p = (byte[]) pixels;
+			for (int i=step/2; i < size; i += step, n++) histogram[p[i] & 0xff]++;
+		} else {
+			short[] p = (short[]) pixels;
+			for (int i=step/2; i < size; i += step, n++) histogram[p[i] & 0xffff]++;
+		}
+		long rank = rank(n, percentile);
+		long count = 0;
+		for (int v=0; v < histogram.length; v++) {
+			count += histogram[v];
+			if (count > rank) return v;
+		}
+		return histogram.length-1;
+	}
+
+	// Sorted subsample, for 32-bit and RGB slices
+	private static double samplePercentile(Object pixels, double percentile) {
+		int size = pixels instanceof float[] ? ((float[]) pixels).length : ((int[]) pixels).length;
+		int step = step(size);
+		float[] sample = new float[(size - step/2 + step - 1)/step];
+		int n = 0;
+		for (int i=step/2; i < size; i += step) {
+			if (pixels instanceof float[]) {
+				float v = ((float[]) pixels)[i];
+				if (!Float.isNaN(v)) sample[n++] = v;
+			} else {
+				int c = ((int[]) pixels)[i];
+				sample[n++] = (((c >> 16) & 0xff) + ((c >> 8) & 0xff) + (c & 0xff))/3.0f;
+			}
+		}
+		if (n == 0) return Double.NaN;
+		Arrays.sort(sample, 0, n);
+		return sample[(int) rank(n, percentile)];
+	}
+
+	private static int step(int size) {
+		return Math.max((size + MAX_PIXELS - 1)/MAX_PIXELS, 1);
+	}
+
+	// Nearest rank (0-based) of the percentile among n values
+	private static long rank(int n, double percentile) {
+		long rank = (long) Math.ceil(percentile/100.0*n) - 1;
+		return Math.min(Math.max(rank, 0), n-1);
+	}
+
+	// Least squares fit of y(x) by the curve method (index of Gradual_Brightness methods).
+	// Returns {A, B}, or null without two usable points.
+	static double[] fit(int method, int[] x, double[] y) {
+		// All the curves are a straight line v = a + b*u once transformed
+		double su = 0.0, sv = 0.0, suu = 0.0, suv = 0.0;
+		int n = 0;
+		for (int k=0; k < x.length; k++) {
+			double u, v;
+			switch (method) {
+				case 0: u = x[k]; v = y[k]; break; // Linear: A + Bx
+				case 1: u = 1.0/x[k]; v = y[k]; break; // Hyperbolic: A + B/x
+				case 2: u = x[k]; v = Math.log(y[k]); break; // Exponential: ln y = ln A + Bx
+				default: u = Math.log(x[k]); v = Math.log(y[k]); break; // Power: ln y = ln A + B ln x
+			}
+			if (Double.isNaN(v) || Double.isInfinite(v)) continue;
+			su += u;
+			sv += v;
+			suu += u*u;
+			suv += u*v;
+			n++;
+		}
+		double det = n*suu - su*su;
+		if (n < 2 || det <= 1e-12*n*suu) return null;
+		double b = (n*suv - su*sv)/det;
+		double a = (sv - b*su)/n;
+		return method < 2 ? new double[] {a, b} : new double[] {Math.exp(a), b};
+	}
+}
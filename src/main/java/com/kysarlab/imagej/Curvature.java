@@ -8,15 +8,18 @@
 
 package com.kysarlab.imagej;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
-import ij.gui.GenericDialog;
 import ij.measure.Calibration;
 import ij.plugin.PlugIn;
 import ij.process.FloatProcessor;
-import ij.process.ImageConverter;
 import ij.process.ImageProcessor;
 
 public class Curvature implements PlugIn {
@@ -25,19 +28,26 @@ public class Curvature implements PlugIn {
 	// Overall Image Properties
 	private int w, h;
 	private double pW;
+	private Calibration cal;
 
 	// Dialog Parameters
 	private String method;
 	private int pR;
+	private int[] scales; // pixel ranges of the multi-scale mode, null for a single map
+	private int n_threads;
+	private double sigma;
 
 	private int indx(int i, int j){return i + j * w;}
 
-	private boolean showDialog() {
-		GenericDialog gd = new GenericDialog("Compute Curvature");
+	private boolean showDialog(String options) {
+		Parameters gd = new Parameters("Compute Curvature", options);
 
-		String [] methods = new String [] {"Satelite Points","Gradient Based (not implemented)"};
+		String [] methods = new String [] {"Satelite Points","Gradient Based"};
 		gd.addRadioButtonGroup("Method:", methods, 1, 2, "Satelite Points");
 		gd.addNumericField("Pixel Range", Math.max(w/10,1), 0,6,"pixels");
+		gd.addStringField("Scales (pixel ranges, e.g. 5,10,20 or 5-50:5)", "", 20);
+		gd.addNumericField("Gradient sigma", 2.0, 2,6,"pixels");
+		gd.addNumericField("Threads", Prefs.getThreads(), 0);
 
 		gd.showDialog();
 		if (gd.wasCanceled())
@@ -46,61 +56,206 @@ public class Curvature implements PlugIn {
 		// get entered values
 		method = gd.getNextRadioButton();
 		pR = (int) gd.getNextNumber();
+		String scale_list = gd.getNextString().trim();
+		sigma = gd.getNextNumber();
+		n_threads = Math.max((int) gd.getNextNumber(), 1);
+
+		scales = null;
+		if (!scale_list.isEmpty()) {
+			try {
+				scales = parseScales(scale_list);
+			} catch (NumberFormatException e) {
+				IJ.error("Compute Curvature", "Invalid list of scales: " + scale_list);
+				return false;
+			}
+		}
 
 		return true;
-	}	
-
-
-	private double TPcurv(double ax,double ay,double bx,double by,double cx,double cy) {
-		double d=(ax-bx)*(by-cy)-(bx-cx)*(ay-by);
-		if (d==0.0) {return Double.NaN;}
-		else {
-			double u = (ax*ax-bx*bx+ay*ay-by*by)/2;
-			double v = (bx*bx-cx*cx+by*by-cy*cy)/2;
-			double x = (u*(by-cy)-v*(ay-by))/d;
-			double y = (v*(ax-bx)-u*(bx-cx))/d;
-			double r = Math.sqrt((ax-x)*(ax-x)+(ay-y)*(ay-y));
-			return r;
+	}
+
+	// Comma separated pixel ranges, each either a value or first-last:step
+	private static int[] parseScales(String list) {
+		int[] values = new int[0];
+		for (String item : list.split(",")) {
+			item = item.trim();
+			int first, last, step = 1;
+			int dash = item.indexOf('-', 1);
+			if (dash < 0) {
+				first = last = Integer.parseInt(item);
+			} else {
+				int colon = item.indexOf(':', dash);
+				first = Integer.parseInt(item.substring(0, dash).trim());
+				last = Integer.parseInt(item.substring(dash+1, colon < 0 ? item.length() : colon).trim());
+				if (colon >= 0) step = Integer.parseInt(item.substring(colon+1).trim());
+			}
+			if (first < 1 || last < first || step < 1) throw new NumberFormatException(item);
+			for (int v=first; v <= last; v+=step) {
+				values = Arrays.copyOf(values, values.length+1);
+				values[values.length-1] = v;
+			}
 		}
+		return values;
 	}
 
 
-	private void SateliteCurvature(float[] ipf, float[] rpf) {
+	// Terms of the circle through three points (see radius) that only depend on the
+	// satellite positions along one axis: columns for rx, rows for ry. Inside [first, last)
+	// the satellites are not clamped: they are range pixels (a distance d) on each side.
+	static class Satelites {
+		final int[] min, mid, max;
+		final double[] ab, bc, ab2, bc2, ca2;
+		final int range, first, last;
+		final double d2, half_d;
+
+		Satelites(int n, int pR, double pW) {
+			min = new int[n];
+			mid = new int[n];
+			max = new int[n];
+			ab = new double[n];
+			bc = new double[n];
+			ab2 = new double[n];
+			bc2 = new double[n];
+			ca2 = new double[n];
+			for (int k=0; k < n; k++) {
+				min[k] = Math.max(k-pR,0);
+				max[k] = Math.min(k+pR,n-1);
+				mid[k] = min[k]+(max[k]-min[k])/2;
+				ab[k] = (mid[k]-min[k])*pW;
+				bc[k] = (max[k]-mid[k])*pW;
+				ab2[k] = ab[k]*ab[k];
+				bc2[k] = bc[k]*bc[k];
+				ca2[k] = (ab[k]+bc[k])*(ab[k]+bc[k]);
+			}
+			range = pR;
+			first = pR > 0 ? Math.min(pR, n) : n;
+			last = Math.max(n-pR, first);
+			d2 = (pR*pW)*(pR*pW);
+			half_d = 0.5/(pR*pW);
+		}
 
-		// Add pixels of slice to the sum and sum x height
-		for (int y=0; y < h; y++) {
-			int ymin=Math.max(y-pR,0);
-			int ymax=Math.min(y+pR,h-1);
-			int ymid=ymin+(ymax-ymin)/2;
-			for (int x=0; x < w; x++) {
-				int xmin=Math.max(x-pR,0);
-				int xmax=Math.min(x+pR,w-1);
-				int xmid=xmin+(xmax-xmin)/2;
+		// Radius of the circle through the satellites at position k, of heights ay, by, cy,
+		// infinite if they are aligned: |AB|*|BC|*|CA| / (2*|AB x BC|)
+		double radius(int k, double ay, double by, double cy) {
+			double dab = by-ay, dbc = cy-by, dca = ay-cy;
+			double cross = ab[k]*dbc - dab*bc[k];
+			double r = Math.sqrt((ab2[k]+dab*dab)*(bc2[k]+dbc*dbc)*(ca2[k]+dca*dca)) / Math.abs(2*cross);
+			return cross == 0.0 ? Double.POSITIVE_INFINITY : r;
+		}
 
-				double rx = TPcurv(
-					xmin*pW,ipf[indx(xmin, y)],
-					xmid*pW,ipf[indx(xmid, y)],
-					xmax*pW,ipf[indx(xmax, y)]);
-				double ry = TPcurv(
-					ymin*pW,ipf[indx(x, ymin)],
-					ymid*pW,ipf[indx(x, ymid)],
-					ymax*pW,ipf[indx(x, ymax)]);
+		// Same as radius for n positions inside [first, last), where AB = BC = d along the
+		// axis: r[ir+k] from the heights a[ia+k], b[ib+k], c[ic+k]. The loop only reads and
+		// writes double arrays, so that the JIT can vectorize it.
+		void radii(double[] a, int ia, double[] b, int ib, double[] c, int ic, double[] r, int ir, int n) {
+			for (int k=0; k < n; k++) {
+				double ay = a[ia+k], by = b[ib+k], cy = c[ic+k];
+				double dab = by-ay, dbc = cy-by, dca = ay-cy;
+				r[ir+k] = Math.sqrt((d2+dab*dab)*(d2+dbc*dbc)*(4*d2+dca*dca)) * half_d / Math.abs(dbc-dab);
+			}
+		}
+	}
 
+	// Radius maps for the pixel ranges ranges[s], in rpfs[s]. Each pixel only reads the
+	// input, so the rows of all the scales are shared out together in bands and computed
+	// in parallel. All the scales read the same input, which stays in memory once.
+	private void SateliteCurvature(float[] ipf, int[] ranges, float[][] rpfs) {
+		int ns = ranges.length;
+		Satelites[] xs = new Satelites[ns];
+		Satelites[] ys = new Satelites[ns];
+		for (int s=0; s < ns; s++) {
+			xs[s] = new Satelites(w, ranges[s], pW);
+			ys[s] = new Satelites(h, ranges[s], pW);
+		}
+		AtomicInteger rows_done = new AtomicInteger();
+		ParallelBands bands = new ParallelBands(n_threads);
+		try {
+			bands.run(ns*h, bands.defaultBands(ns*h), (u0, u1) -> {
+				// Rows u0..u1 of all the maps put one after the other
+				for (int u=u0; u < u1; ) {
+					int s = u / h;
+					int y0 = u % h;
+					int y1 = Math.min(h, y0 + u1-u);
+					SateliteCurvature(ipf, rpfs[s], xs[s], ys[s], y0, y1);
+					u += y1-y0;
+				}
+				IJ.showProgress(rows_done.addAndGet(u1-u0), ns*h);
+			});
+		} finally {
+			bands.shutdown();
+		}
+	}
 
-				double threshold = 1.0E10;
-				double rp = threshold;
+	// Rows [y0, y1) of the radius map. The rows are converted to double first. Away from
+	// the edges, the satellites are read directly with the radii kernel, near the edges
+	// they go through the clamped satellite tables.
+	private void SateliteCurvature(float[] ipf, float[] rpf, Satelites xs, Satelites ys, int y0, int y1) {
+		double threshold = 1.0E10;
+		double[] line = new double[w];
+		double[] above = new double[w];
+		double[] below = new double[w];
+		double[] rx = new double[w];
+		double[] ry = new double[w];
+
+		for (int y=y0; y < y1; y++) {
+			int row = indx(0, y);
+			toDouble(ipf, row, line);
+			for (int x=0; x < xs.first; x++) {
+				rx[x] = xs.radius(x, line[xs.min[x]], line[xs.mid[x]], line[xs.max[x]]);
+			}
+			xs.radii(line, xs.first-xs.range, line, xs.first, line, xs.first+xs.range, rx, xs.first, xs.last-xs.first);
+			for (int x=xs.last; x < w; x++) {
+				rx[x] = xs.radius(x, line[xs.min[x]], line[xs.mid[x]], line[xs.max[x]]);
+			}
 
-				if (rx == Double.NaN && ry == Double.NaN){rp=threshold;}
-				else if (rx == Double.NaN) {rp=ry;}
-				else if (ry == Double.NaN) {rp=rx;}
-				else {rp=(rx+ry)/2;}
+			if (y >= ys.first && y < ys.last) {
+				toDouble(ipf, indx(0, y-ys.range), above);
+				toDouble(ipf, indx(0, y+ys.range), below);
+				ys.radii(above, 0, line, 0, below, 0, ry, 0, w);
+			} else {
+				int row_min = indx(0, ys.min[y]);
+				int row_mid = indx(0, ys.mid[y]);
+				int row_max = indx(0, ys.max[y]);
+				for (int x=0; x < w; x++) {
+					ry[x] = ys.radius(y, ipf[row_min + x], ipf[row_mid + x], ipf[row_max + x]);
+				}
+			}
 
+			// An infinite radius (aligned points) is left out of the mean
+			double inf = Double.POSITIVE_INFINITY;
+			for (int x=0; x < w; x++) {
+				double rp;
+				if (rx[x] < inf) {
+					rp = ry[x] < inf ? (rx[x]+ry[x])/2 : rx[x];
+				} else {
+					rp = ry[x] < inf ? ry[x] : threshold;
+				}
 				if (rp>threshold){rp=threshold;}
-					
-				rpf[indx(x,y)] = (float) rp;
+				rpf[row + x] = (float) rp;
 			}
+		}
+	}
 
+	private void toDouble(float[] ipf, int offset, double[] line) {
+		for (int x=0; x < w; x++) line[x] = ipf[offset + x];
+	}
+
+
+	// Mean, Gaussian and principal curvatures from Gaussian derivatives, as a stack
+	private ImagePlus GradientCurvature(float[] ipf) {
+		float[][] curvatures;
+		ParallelBands bands = new ParallelBands(n_threads);
+		try {
+			curvatures = new GradientCurvature(w, h, Math.max(sigma, 0.5), pW).compute(ipf, bands);
+		} finally {
+			bands.shutdown();
 		}
+
+		ImageStack stack = new ImageStack(w, h);
+		for (int k=0; k < curvatures.length; k++) {
+			stack.addSlice(GradientCurvature.NAMES[k], curvatures[k]);
+		}
+		ImagePlus curvature = new ImagePlus("Curvature",stack);
+		curvature.setCalibration(cal);
+		return curvature;
 	}
 
 
@@ -109,36 +264,73 @@ public class Curvature implements PlugIn {
 		
 		// Get the current image
 		imp = WindowManager.getCurrentImage();
+		if (imp == null) {IJ.noImage(); return;}
+		getInfo();
+
+		// Run the dialog to get parameters and exits if cancelled
+		if (!showDialog(Parameters.getOptions(arg))) {return;}
+
+		process().show();
+	}
 
-		// Convert to Gray32 and get pixel scale
-		ImageConverter ic = new ImageConverter(imp);
-		ic.convertToGray32();
-		Calibration cal = imp.getCalibration();
+	/**
+	 * Computes the curvature of an image without showing any dialog or window.
+	 *
+	 * @param imp the height image
+	 * @param options the parameters, as recorded by the macro recorder
+	 *   (e.g. "method=[Satelite Points] pixel=20 threads=8"); missing ones take their default value
+	 * @return the radius of curvature map(s), or the curvatures stack of the gradient method
+	 */
+	public ImagePlus process(ImagePlus imp, String options) {
+		this.imp = imp;
+		getInfo();
+		if (!showDialog(options == null ? "" : options)) throw new IllegalArgumentException("Compute Curvature: invalid options");
+		return process();
+	}
+
+	private void getInfo() {
+		// Pixel scale. The results are 32-bit, so they get no density calibration.
+		cal = imp.getCalibration().copy();
+		cal.disableDensityCalibration();
 		pW=cal.pixelWidth;
 
 		// W,H,NCh,NSl,NFr = imp.getDimensions()
 		int[] imp_dim = imp.getDimensions();
 		w = imp_dim[0];
 		h = imp_dim[1];
-	
-		// Run the dialog to get parameters and exits if cancelled
-		if (!showDialog()) {return;}
+	}
+
+	private ImagePlus process() {
+		// Get Image Pixels, as float values (the image itself is not converted)
+		float[] ipf = SliceView.of(imp).getPixels(null);
+
+		if (method.equals("Gradient Based")){
+			return GradientCurvature(ipf);
+		}
+
+		if (scales != null) {
+			float[][] rpfs = new float[scales.length][w * h];
+			SateliteCurvature(ipf, scales, rpfs);
+			ImageStack stack = new ImageStack(w, h);
+			for (int s=0; s < scales.length; s++) {
+				stack.addSlice("Pixel Range " + scales[s], rpfs[s]);
+			}
+			ImagePlus radius = new ImagePlus("Radius of Curvature",stack);
+			radius.setCalibration(cal);
+			return radius;
+		}
 
 		// Initialize Curvature Figure
 		float[] rpf = new float[w * h];
 
-		// Get Image Pixels
-		ImageProcessor img_p = imp.getProcessor();
-		float[] ipf = (float[]) img_p.getPixels();
-
-		if (method=="Satelite Points"){
-			SateliteCurvature(ipf,rpf);
+		if (method.equals("Satelite Points")){
+			SateliteCurvature(ipf, new int[] {pR}, new float[][] {rpf});
 		}
 
 		ImageProcessor r_ip = new FloatProcessor(w,h,rpf);
 		ImagePlus radius = new ImagePlus("Radius of Curvature",r_ip);
 		radius.setCalibration(cal);
-		radius.show();
+		return radius;
 	}
 
 	public void showAbout() {
@@ -9,19 +9,17 @@
 package com.kysarlab.imagej;
 
 import java.io.File;
-import java.util.Arrays;
 
 import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.measure.Calibration;
 import ij.plugin.PlugIn;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
-import ij.process.ImageConverter;
-import ij.gui.GenericDialog;
 
 public class Flatten_Membrane implements PlugIn {
 
@@ -38,21 +36,28 @@ public class Flatten_Membrane implements PlugIn {
 	private double min, max; // Threshhold min/max
 	private double sigma; // Std. dev. for Gaussian Smoothing
 	private boolean show_height; // Show heigh figure
-	private String [] interp_methods =  {"Linear","Monotone Cubic"};
+	private String [] interp_methods = Interpolator.METHODS;
 	private String theInterpMethod;
+	private int n_threads; // Threads
+	private long max_memory; // Memory (MB) for the band of columns
+
+	// Results
+	private ImagePlus avg_height; // Smoothed average height, if asked for
 
 
 	// FUNCTIONS
 
-	// Shows dialog
-	private boolean showDialog() {
+	// Shows dialog (or reads the options, if any)
+	private boolean showDialog(String options) {
 		// specify fields in Dialog
-		GenericDialog gd = new GenericDialog("Flatten membrane properties");
+		Parameters gd = new Parameters("Flatten membrane properties", options);
 		gd.addRadioButtonGroup("Interpolation Method:", interp_methods, 4, 1, interp_methods[0]);
 		gd.addNumericField("Minimum pixel threshold", 0.0,   2);
 		gd.addNumericField("Maximum pixel threshold", maxdim, 2);
 		gd.addNumericField("Standard Deviation (Smoothing)", 10.0, 2);
 		gd.addCheckbox("Show Average Height map", false);
+		gd.addNumericField("Threads", Prefs.getThreads(), 0);
+		gd.addNumericField("Working memory", 1024, 0, 6, "MB");
 		gd.showDialog();
 		if (gd.wasCanceled())
 			return false;
@@ -63,13 +68,17 @@ public class Flatten_Membrane implements PlugIn {
 		max = (double) gd.getNextNumber();
 		sigma = (double) gd.getNextNumber();
 		show_height = gd.getNextBoolean();
+		n_threads = Math.max((int) gd.getNextNumber(), 1);
+		max_memory = Math.max((long) gd.getNextNumber(), 1);
 
 		return true;
 	}	
 
 	// Collect relevant properties of the stack
 	private void getInfo(ImagePlus implus) {
-		cal = imp.getCalibration();
+		// The results are 32-bit, so they get no density calibration
+		cal = imp.getCalibration().copy();
+		cal.disableDensityCalibration();
 		// pD=cal.pixelDepth;
 		// pW=cal.pixelWidth;
 
@@ -96,21 +105,65 @@ public class Flatten_Membrane implements PlugIn {
 		return (val-min)/(max-min);
 	}
 
-	// Interpolate value between yi-1 and yi, for percentage alpha
-	private double interpolatePixel(double y1, double y2, double alpha, double m1, double m2) {
-		if (theInterpMethod=="Linear") {
-			return y1*(1-alpha)+y2*alpha;
-		} else if (theInterpMethod=="Monotone Cubic") {
-			return y1*(1+2*alpha)*(1-alpha)*(1-alpha)+
-				   m1*alpha*(1-alpha)*(1-alpha)+
-				   y2*alpha*alpha*(3-2*alpha)+
-				   m2*alpha*alpha*(alpha-1);
+	// Add pixels [start,end) of slice to the sum and sum x height
+	private void addSlice(float[] slice_pixels, int s, int stage, double[] si_pixels, double[] sixh_pixels,
+			double[] h_min_pixels, double[] h_max_pixels, int start, int end) {
+		for (int idx=start; idx < end; idx++) {
+			// Get min-max slice
+			double val= slice_pixels[idx];
+			if (val>=min) {
+				if (stage==0) h_min_pixels[idx] = s;
+				else if (stage==1) h_max_pixels[idx] =s;
+			}
+
+			val=normval(val);
+
+			si_pixels[idx] += val;
+			sixh_pixels[idx] += val*s;
 		}
-		return 0.0;
 	}
 
-	private boolean isZero(double val) {
-		return (Math.abs(val) < 2 * Double.MIN_VALUE);
+	// Fused kernel for the rows [j0,j1): each column is read once from the band
+	// tile, and its integer shift, interpolation parameters and interpolation are
+	// done in small local buffers (y: shifted values, plus the interpolator's own).
+	// The tile stores the columns contiguously in float, which holds the source
+	// values (read through slice views) exactly. Each slice is taken from the stack
+	// once per band, on this thread, and the threads copy its rows of the band.
+	private void processBand(int[] f, double[] a, float[][] new_slices, int j0, int j1, ParallelBands bands) {
+		int bs = w * (j1-j0); // pixels in the band
+		int offset = j0 * w;  // index of the first pixel of the band
+		float[] tile = new float[bs * nSlices];
+
+		// Read the columns of the band, slice by slice
+		for (int s=1; s <= nSlices; s++) {
+			SliceView view = SliceView.of(imp, s);
+			int k = s-1;
+			bands.run(bs, bands.getThreads(), (p0, p1) -> {
+				for (int p=p0; p < p1; p++) {
+					tile[p*nSlices + k] = view.getf(offset+p);
+				}
+			});
+		}
+
+		bands.run(bs, bands.defaultBands(bs), (p0, p1) -> {
+			double[] y = new double[nSlices];
+			Interpolator interpolator = Interpolator.create(theInterpMethod, nSlices);
+			for (int p=p0; p < p1; p++) {
+				processColumn(tile, p*nSlices, f[offset+p], a[offset+p], y, interpolator, new_slices, offset+p);
+			}
+		});
+	}
+
+	private void processColumn(float[] tile, int col, int fp, double alpha, double[] y,
+			Interpolator interpolator, float[][] new_slices, int idx) {
+		// Make Integer Shifted column (slice s goes to slice s-f)
+		for (int k=0; k < nSlices; k++) {
+			int source = k + fp;
+			y[k] = (source >= 0 && source < nSlices) ? tile[col + source] : 0.0;
+		}
+
+		// Interpolate for final Adjusted Stack
+		interpolator.interpolate(y, alpha, new_slices, idx);
 	}
 
 	// When you click the button
@@ -118,16 +171,44 @@ public class Flatten_Membrane implements PlugIn {
 
 		// Get the current image
 		imp = WindowManager.getCurrentImage(); // IJ.runPlugIn("Average_Height",""); ImagePlus avg_height = WindowManager.getImage("Average Height");
+		if (imp == null) {IJ.noImage(); return;}
 		// Get img info
 		getInfo(imp);
 
 		// Run the dialog to get parameters and exits if cancelled
-		if (!showDialog()) {return;}
+		if (!showDialog(Parameters.getOptions(arg))) {return;}
+
+		ImagePlus new_stack = process();
+		if (show_height) avg_height.show();
+		new_stack.show();
+	}
+
+	/**
+	 * Flattens a stack without showing any dialog or window.
+	 *
+	 * @param imp the stack to flatten
+	 * @param options the parameters, as recorded by the macro recorder
+	 *   (e.g. "interpolation=Linear minimum=0 maximum=255 standard=10 threads=8");
+	 *   missing ones take their default value
+	 * @return the adjusted stack (the smoothed average height is then given by
+	 *   getAverageHeight() when "show" is in the options)
+	 */
+	public ImagePlus process(ImagePlus imp, String options) {
+		this.imp = imp;
+		getInfo(imp);
+		showDialog(options == null ? "" : options);
+		return process();
+	}
+
+	public ImagePlus getAverageHeight() {
+		return avg_height;
+	}
+
+	private ImagePlus process() {
+		avg_height = null;
 
-		// Convert to Gray32
-		IJ.showStatus("Converting Stack to 32-bit float ...");
-		ImageConverter ic = new ImageConverter(imp);
-		ic.convertToGray32();
+		// The slices are read as float values, without converting the stack
+		float[] buffer = new float[w * h]; // values of a slice other than 32-bit
 
 		// Initialize Figures
 		double[] si_pixels = new double[w * h];
@@ -135,35 +216,22 @@ public class Flatten_Membrane implements PlugIn {
 		double[] h_min_pixels = new double[w * h];
 		double[] h_max_pixels = new double[w * h];
 
-		// Process the average height algorithm
+		// Process the average height algorithm. Each thread owns a band of
+		// pixels, so the sums need no synchronization.
 		IJ.showStatus("Compute Average Height figure ...");
 		int idx = 0;
 		int stage = 0;
-		ImageStack stack = imp.getStack();
-		for (int s=1; s <= nSlices; s++) {
-			IJ.showProgress(s, nSlices);
-			// FloatProcessor slice_p = imp.getStack().getProcessor(s).convertToFloatProcessor();
-			ImageProcessor slice_p = stack.getProcessor(s);
-			float[] slice_pixels = (float[]) slice_p.getPixels();
-
-			// Add pixels of slice to the sum and sum x height
-			for (int j=0; j < h; j++) {
-				for (int i=0; i < w; i++) {
-					idx = i + j * w;
-
-					// Get min-max slice
-					double val= slice_pixels[idx];
-					if (val>=min) {
-						if (stage==0) h_min_pixels[idx] = s;
-						else if (stage==1) h_max_pixels[idx] =s;
-					}
-
-					val=normval(val);
-
-					si_pixels[idx] += val;
-					sixh_pixels[idx] += val*s;
-				}
+		ParallelBands bands = new ParallelBands(n_threads);
+		try {
+			for (int s=1; s <= nSlices; s++) {
+				IJ.showProgress(s, nSlices);
+				float[] slice_pixels = SliceView.of(imp, s).getPixels(buffer);
+				int slice = s;
+				bands.run(w * h, bands.getThreads(), (start, end) ->
+					addSlice(slice_pixels, slice, stage, si_pixels, sixh_pixels, h_min_pixels, h_max_pixels, start, end));
 			}
+		} finally {
+			bands.shutdown();
 		}
 
 		// Divide pixels of sum x height by sum
@@ -186,9 +254,8 @@ public class Flatten_Membrane implements PlugIn {
 		h_pixels = (float[]) avg_h_ip.getPixels();
 
 		if (show_height) {
-			ImagePlus avg_height = new ImagePlus("Average Height",avg_h_ip);
+			avg_height = new ImagePlus("Average Height",avg_h_ip);
 			avg_height.setCalibration(cal);
-			avg_height.show();
 		}
 
 
@@ -207,117 +274,35 @@ public class Flatten_Membrane implements PlugIn {
 			}
 		}
 
-		// Make Integer Shifted Stack
-		IJ.showStatus("Make Integer-shifted Stack ...");
-		double[] fullstack = new double[w * h * nSlices];
-		Arrays.fill(fullstack, 0.0);
-
-		int targetSlice = 0;
-		for (int s=1; s <= nSlices; s++) {
-			IJ.showProgress(s, nSlices);
-			float[] slice_pixels = (float[]) stack.getProcessor(s).getPixels();
-			for (int j=0; j < h; j++) {
-				for (int i=0; i < w; i++) {
-					idx = i + j * w ;
-					targetSlice = s-f[idx];
-					if (targetSlice >= 1 && targetSlice <= nSlices) {
-						fullstack[idx + (targetSlice-1)*w*h] = slice_pixels[idx];
-					}
-				}
+		// Shift and interpolate, one band of rows at a time, so that only the
+		// columns of the band have to be kept in memory
+		long voxel_bytes = 4; // float tile
+		long band_rows = (max_memory << 20) / (voxel_bytes * w * nSlices);
+		int rows = (int) Math.max(Math.min(band_rows, h), 1);
+
+		float[][] new_slices = new float[nSlices-1][w * h];
+		bands = new ParallelBands(n_threads);
+		try {
+			for (int j0=0; j0 < h; j0 += rows) {
+				int j1 = Math.min(j0 + rows, h);
+				IJ.showStatus("Shifting and interpolating rows "+j0+"-"+(j1-1)+" ...");
+				IJ.showProgress(j0, h);
+				processBand(f, a, new_slices, j0, j1, bands);
 			}
+		} finally {
+			bands.shutdown();
 		}
+		IJ.showProgress(1.0);
 
-		// Compute interpolation parameter for non-linear interpolation methods
-		double[] deltaStack = new double[w * h * nSlices];
-		double[] slopeStack = new double[w * h * nSlices];
-		int ph,pi,pj;
-		if (theInterpMethod=="Monotone Cubic") {
-			IJ.showStatus("Computing cubic interpolation parameters ...");
-			for (int s=1; s <= nSlices-1; s++) {
-				IJ.showProgress(s, nSlices);
-				for (int j=0; j < h; j++) {
-					for (int i=0; i < w; i++) {
-						ph = i + j*w + (s-1-1)*w*h; //k-1
-						pi = i + j*w + (s  -1)*w*h; //k
-						pj = i + j*w + (s+1-1)*w*h; //k+1
-
-						deltaStack[pi] = fullstack[pj] - fullstack[pi]; //dk = yk+1 - yk
-
-						if (isZero(deltaStack[pi])) { // if dk==0
-							slopeStack[pi]=0.0; // mk=0
-							if (s==nSlices-1) { // if k==n-1
-								slopeStack[pj]=0.0;
-							}
-
-						} else if (s==1) { // if k==1
-							slopeStack[pi]=deltaStack[pi]; //mk=dk
-
-						} else if (s==nSlices-1) { // if k==n-1
-							slopeStack[pj]=deltaStack[pi]; //mn=dn-1
-
-						} else if (isZero(deltaStack[ph])) { // if dk-1==0
-							slopeStack[pi]=0.0; // mk=0
-
-						} else if (deltaStack[ph]*deltaStack[pi]<0.0) {
-							slopeStack[pi]=0.0; // mk=0
-
-						} else {
-							slopeStack[pi]=0.5*(deltaStack[ph]+deltaStack[pi]);
-						}
-						
-						if (!isZero(deltaStack[pi])) {
-							double aa=slopeStack[pi]/deltaStack[pi];
-							if (aa<0) {
-								slopeStack[pi] = 0.0;
-							} else if (aa>3) {
-								slopeStack[pi] = 3.0*deltaStack[pi];
-							}
-
-						} else if (s!=1 && !isZero(deltaStack[ph])) {
-							double bb=slopeStack[pi]/deltaStack[ph];
-							if (bb<0) {
-								slopeStack[pi] = 0.0;
-							} else if (bb>3) {
-								slopeStack[ph] = 3.0*deltaStack[ph];
-							}
-						}
-
-						if (s==nSlices-1 && !isZero(deltaStack[pi])) {
-							double bb=slopeStack[pj]/deltaStack[pi];
-							if (bb>3) {
-								slopeStack[pi] = 3.0*deltaStack[pi];
-							}
-						}
-					}
-				}
-			}
-		}
-
-		// Interpolate for final Adjusted Stack
-		IJ.showStatus("Interpolating ...");
 		ImageStack shifted_stack = new ImageStack(w,h);
-		double interpolatedValue;
 		for (int s=1; s <= nSlices-1; s++) {
-			IJ.showProgress(s, nSlices);
-			float[] new_slice = new float[w * h];
-			for (int j=0; j < h; j++) {
-				for (int i=0; i < w; i++) {
-					idx = i + j * w;
-					pi = i + j*w + (s-1)*w*h;
-					pj = i + j*w + (s+1-1)*w*h;
-					interpolatedValue = interpolatePixel(fullstack[pi], fullstack[pj], a[idx],slopeStack[pi],slopeStack[pj]);
-					// new_slice[idx] = (float) (fullstack[pi]*(1-a[idx])+fullstack[pj]*a[idx]);
-					new_slice[idx] = (float) interpolatedValue;
-				}
-			}
-			shifted_stack.addSlice("",new_slice);
+			shifted_stack.addSlice("",new_slices[s-1]);
 		}
 
 		ImagePlus new_stack = new ImagePlus("Adjusted Stack",shifted_stack);
 		new_stack.setCalibration(cal);
 		new_stack.setDisplayRange(0.0, maxdim);
-		new_stack.show();
-
+		return new_stack;
 	}
 
 	public void showAbout() {
@@ -0,0 +1,134 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package com.kysarlab.imagej;
+
+// Curvatures of the surface z = f(x,y) from Gaussian derivatives of the height image.
+// The derivatives come from separable filters: a row pass gives the smoothed row and its
+// first and second derivatives, then a column pass combines them into fx, fy, fxx, fyy
+// and fxy. Out-of-image pixels are taken equal to the edge pixels.
+class GradientCurvature {
+
+	static final String[] NAMES = {"Mean Curvature","Gaussian Curvature","k1","k2"};
+
+	private final int w, h, radius;
+	private final double pW;
+	private final float[] g0, g1, g2; // correlation kernels from -radius to radius
+
+	GradientCurvature(int w, int h, double sigma, double pW) {
+		this.w = w;
+		this.h = h;
+		this.pW = pW;
+		radius = Math.max((int) Math.ceil(4*sigma), 1);
+		int n = 2*radius+1;
+		double[] g = new double[n];
+		double sum = 0.0, sum2 = 0.0;
+		for (int k=-radius; k <= radius; k++) {
+			g[k+radius] = Math.exp(-0.5*k*k/(sigma*sigma));
+			sum += g[k+radius];
+			sum2 += k*k*g[k+radius];
+		}
+		// Normalized so that they give exactly 1 for f = 1, f' = 1 for f = x and
+		// f'' = 1 for f = x*x/2
+		double mean2 = sum2/sum, sum4 = 0.0;
+		for (int k=-radius; k <= radius; k++) {
+			sum4 += k*k*(k*k-mean2)*g[k+radius];
+		}
+		g0 = new float[n];
+		g1 = new float[n];
+		g2 = new float[n];
+		for (int k=-radius; k <= radius; k++) {
+			g0[k+radius] = (float) (g[k+radius]/sum);
+			g1[k+radius] = (float) (k*g[k+radius]/sum2);
+			g2[k+radius] = (float) (2*(k*k-mean2)*g[k+radius]/sum4);
+		}
+	}
+
+	// Mean, Gaussian and principal curvatures (see NAMES), in 1/(calibrated unit)
+	float[][] compute(float[] z, ParallelBands bands) {
+		float[] r0 = new float[w*h], r1 = new float[w*h], r2 = new float[w*h];
+		bands.run(h, bands.defaultBands(h), (y0, y1) -> {
+			float[] line = new float[w+2*radius];
+			for (int y=y0; y < y1; y++) {
+				filterRow(z, y, line, r0, r1, r2);
+			}
+		});
+
+		float[][] curvatures = new float[NAMES.length][w*h];
+		bands.run(h, bands.defaultBands(h), (y0, y1) -> {
+			double[][] d = new double[5][w];
+			for (int y=y0; y < y1; y++) {
+				filterColumns(r0, r1, r2, y, d);
+				curvatures(d, y, curvatures);
+			}
+		});
+		return curvatures;
+	}
+
+	// Smoothed row y and its first and second derivatives along x
+	private void filterRow(float[] z, int y, float[] line, float[] r0, float[] r1, float[] r2) {
+		int row = y*w;
+		System.arraycopy(z, row, line, radius, w);
+		for (int k=0; k < radius; k++) {
+			line[k] = z[row];
+			line[radius+w+k] = z[row+w-1];
+		}
+		int n = 2*radius+1;
+		for (int x=0; x < w; x++) {
+			double s0 = 0.0, s1 = 0.0, s2 = 0.0;
+			for (int k=0; k < n; k++) {
+				double v = line[x+k];
+				s0 += g0[k]*v;
+				s1 += g1[k]*v;
+				s2 += g2[k]*v;
+			}
+			r0[row+x] = (float) s0;
+			r1[row+x] = (float) s1;
+			r2[row+x] = (float) s2;
+		}
+	}
+
+	// fx, fy, fxx, fyy, fxy of row y (in pixel units), from the row pass results
+	private void filterColumns(float[] r0, float[] r1, float[] r2, int y, double[][] d) {
+		double[] fx = d[0], fy = d[1], fxx = d[2], fyy = d[3], fxy = d[4];
+		for (int x=0; x < w; x++) {
+			fx[x] = fy[x] = fxx[x] = fyy[x] = fxy[x] = 0.0;
+		}
+		for (int k=-radius; k <= radius; k++) {
+			int row = Math.min(Math.max(y+k, 0), h-1)*w;
+			double c0 = g0[k+radius], c1 = g1[k+radius], c2 = g2[k+radius];
+			for (int x=0; x < w; x++) {
+				fx[x] += c0*r1[row+x];
+				fy[x] += c1*r0[row+x];
+				fxx[x] += c0*r2[row+x];
+				fyy[x] += c2*r0[row+x];
+				fxy[x] += c1*r1[row+x];
+			}
+		}
+	}
+
+	private void curvatures(double[][] d, int y, float[][] curvatures) {
+		double[] fx = d[0], fy = d[1], fxx = d[2], fyy = d[3], fxy = d[4];
+		float[] mean = curvatures[0], gauss = curvatures[1], k1 = curvatures[2], k2 = curvatures[3];
+		// The curvatures do not depend on the direction of the y axis (rows going down)
+		double s1 = 1.0/pW, s2 = 1.0/(pW*pW);
+		int row = y*w;
+		for (int x=0; x < w; x++) {
+			double zx = fx[x]*s1, zy = fy[x]*s1;
+			double zxx = fxx[x]*s2, zyy = fyy[x]*s2, zxy = fxy[x]*s2;
+			double g = 1 + zx*zx + zy*zy;
+			double H = ((1 + zx*zx)*zyy - 2*zx*zy*zxy + (1 + zy*zy)*zxx)/(2*g*Math.sqrt(g));
+			double K = (zxx*zyy - zxy*zxy)/(g*g);
+			double root = Math.sqrt(Math.max(H*H - K, 0.0));
+			mean[row+x] = (float) H;
+			gauss[row+x] = (float) K;
+			k1[row+x] = (float) (H + root);
+			k2[row+x] = (float) (H - root);
+		}
+	}
+}
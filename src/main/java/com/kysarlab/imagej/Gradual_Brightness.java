@@ -8,13 +8,17 @@
 
 package com.kysarlab.imagej;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
-import ij.gui.GenericDialog;
 import ij.plugin.PlugIn;
+import ij.process.ColorProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
@@ -28,7 +32,12 @@ public class Gradual_Brightness implements PlugIn {
 	// Fit Parameters
 	private String [] methods =  {"Linear: A + Bx","Hyperbolic: A + B/x","Exponential: Ae^(Bx)","Power: Ax^B"};
 	private String theMethod;
+	private int method; // Index of theMethod
 	private double pA,pB,pD;
+	private boolean fit; // Fit A and B to the stack instead
+	private double percentile; // Percentile of the slices the min curve is fitted to
+
+	private int n_threads; // Threads
 
 
 	// From Plugin.ContrastEnhancer
@@ -38,8 +47,11 @@ public class Gradual_Brightness implements PlugIn {
         int range = 256;
         if (ip instanceof ShortProcessor)
             {max2 = 65535; range=65536;}
-        else if (ip instanceof FloatProcessor)
-            normalizeFloat(ip, min, max);
+        else if (ip instanceof FloatProcessor) {
+            float[] pixels = (float[])ip.getPixels();
+            normalizeFloat(pixels, pixels, min, max);
+            return;
+        }
         int[] lut = new int[range];
         for (int i=0; i<range; i++) {
             if (i<=min)
@@ -51,27 +63,40 @@ public class Gradual_Brightness implements PlugIn {
         }
         ip.applyTable(lut);
 	}
-    void normalizeFloat(ImageProcessor ip, double min, double max) {
-        double scale = max>min?1.0/(max-min):1.0;
-        int size = ip.getWidth()*ip.getHeight();
-        float[] pixels = (float[])ip.getPixels();
-        double v;
-        for (int i=0; i<size; i++) {
-            v = pixels[i] - min;
-            if (v<0.0) v = 0.0;
-            v *= scale;
-            if (v>1.0) v = 1.0;
-            pixels[i] = (float)v;
-        }
-    }
+	// Maps [min, max] of pixels to [0, 1] in result (which can be pixels). The loop is in
+	// float with min/max clamps instead of branches, so that the JIT can vectorize it. min
+	// is subtracted as two floats (its float value, then the rest), so that the rounding
+	// of min to float does not shift the result: pixel - min is only off by float roundings
+	// of the difference, which stay within a few float ulps of the double computation.
+	static void normalizeFloat(float[] pixels, float[] result, double min, double max) {
+		float min_hi = (float) min;
+		float min_lo = (float) (min - min_hi);
+		float scale = (float) (max>min?1.0/(max-min):1.0);
+		for (int i=0; i<pixels.length; i++) {
+			result[i] = Math.min(Math.max((pixels[i] - min_hi - min_lo)*scale, 0.0f), 1.0f);
+		}
+	}
 
-	// Dialog for input
-	private boolean showDialog() {
-		GenericDialog gd = new GenericDialog("Set Interpolator Properties");
+	// Largest value, ignoring infinite values, as FloatProcessor.getMax()
+	private static double maxValue(float[] pixels) {
+		float max = -Float.MAX_VALUE;
+		for (int i=0; i<pixels.length; i++) {
+			float v = pixels[i];
+			if (v > max && v != Float.POSITIVE_INFINITY) max = v;
+		}
+		return max;
+	}
+
+	// Dialog for input (or the options, if any)
+	private boolean showDialog(String options) {
+		Parameters gd = new Parameters("Set Interpolator Properties", options);
 		gd.addRadioButtonGroup("Fitting Type:", methods, 4, 1, methods[0]);
 		gd.addNumericField("A", 1.0, 4);
 		gd.addNumericField("B", 1.0, 4);
 		gd.addNumericField("Max Delta (-1: Use max)", -1.0, 2);
+		gd.addNumericField("Threads", Prefs.getThreads(), 0);
+		gd.addCheckbox("Fit A and B to the stack (instead of the values above)", false);
+		gd.addNumericField("Percentile of the slices for the fit", 5.0, 1, 6, "%");
 
 		gd.showDialog();
 		if (gd.wasCanceled())
@@ -82,30 +107,66 @@ public class Gradual_Brightness implements PlugIn {
 		pA = gd.getNextNumber();
 		pB = gd.getNextNumber();
 		pD = gd.getNextNumber();
+		n_threads = Math.max((int) gd.getNextNumber(), 1);
+		fit = gd.getNextBoolean();
+		percentile = Math.min(Math.max(gd.getNextNumber(), 0.0), 100.0);
+		method = Arrays.asList(methods).indexOf(theMethod);
+		return true;
+	}
+
+	// Sets A and B to the least squares fit of the chosen curve to a percentile of the
+	// slices (see BrightnessFit). Returns false if the stack does not allow it.
+	private boolean fitCurve() {
+		int[] slices = BrightnessFit.sampleSlices(stackSize);
+		double[] values;
+		ParallelBands bands = new ParallelBands(n_threads);
+		try {
+			values = BrightnessFit.percentiles(imp.getStack(), slices, percentile, bands);
+		} finally {
+			bands.shutdown();
+		}
+		double[] ab = BrightnessFit.fit(method, slices, values);
+		if (ab == null) {
+			IJ.error("Gradual Brightness", "Cannot fit the "+theMethod+" curve: not enough slices"
+				+(method >= 2 ? " with a positive percentile" : ""));
+			return false;
+		}
+		pA = ab[0];
+		pB = ab[1];
+		IJ.log("Gradual Brightness: "+theMethod+" fitted to the "+percentile+"% percentile, A = "
+			+IJ.d2s(pA, 4, 9)+", B = "+IJ.d2s(pB, 4, 9));
 		return true;
 	}
 
+	/** Returns the A coefficient used (fitted, if asked) by the last run. */
+	public double getA() {
+		return pA;
+	}
+
+	/** Returns the B coefficient used (fitted, if asked) by the last run. */
+	public double getB() {
+		return pB;
+	}
+
 	private double getMin(int slice) {
-		if (theMethod==methods[0]) { // Linear
-			return (double) (pA+pB*slice);
-		} else if (theMethod==methods[1]) { // Hyperbolic
-			return (double) (pA+pB/slice);
-		} else if (theMethod==methods[2]) { // Exponential
-			return (double) (pA*Math.exp(pB*slice));
-		} else if (theMethod==methods[3]) { // Power
-			return (double) (pA*Math.pow(slice,pB));
+		switch (method) {
+			case 0: return (double) (pA+pB*slice); // Linear
+			case 1: return (double) (pA+pB/slice); // Hyperbolic
+			case 2: return (double) (pA*Math.exp(pB*slice)); // Exponential
+			case 3: return (double) (pA*Math.pow(slice,pB)); // Power
 		}
 		return -1.0;
 	}
 
-	private double getMax(ImageProcessor ip, double min) {
+	// pixels are only used for 32-bit images
+	private double getMax(int bitDepth, float[] pixels, double min) {
 		double maxmax = 255;
 		if (pD != -1) 
 			maxmax=min+pD;
-		else if (ip instanceof ShortProcessor)
+		else if (bitDepth == 16)
 			maxmax=65535;
-        else if (ip instanceof FloatProcessor)
-			maxmax=ip.getMax();
+		else if (bitDepth == 32)
+			maxmax=maxValue(pixels);
 
 		return maxmax;
 	}
@@ -116,22 +177,122 @@ public class Gradual_Brightness implements PlugIn {
 
 		// Get the current image
 		imp = WindowManager.getCurrentImage();
+		if (imp == null) {IJ.noImage(); return;}
 		stackSize = imp.getStackSize();
 
 		// Run the dialog to get parameters and exits if cancelled
-		if (!showDialog()) {return;}
+		if (!showDialog(Parameters.getOptions(arg))) {return;}
+		if (fit && !fitCurve()) {return;}
 
-		// Process the average height algorithm
+		process().show();
+	}
+
+	/**
+	 * Adjusts the brightness of a stack without showing any dialog or window.
+	 *
+	 * @param imp the stack (left unchanged)
+	 * @param options the parameters, as recorded by the macro recorder
+	 *   (e.g. "fitting=[Linear: A + Bx] a=10 b=2 max=-1", or "fitting=[Power: Ax^B] fit
+	 *   percentile=5 max=-1" to fit A and B); missing ones take their default value
+	 * @return the adjusted stack, of the same type
+	 */
+	public ImagePlus process(ImagePlus imp, String options) {
+		this.imp = imp;
+		stackSize = imp.getStackSize();
+		showDialog(options == null ? "" : options);
+		if (fit && !fitCurve()) throw new IllegalArgumentException("Gradual Brightness: cannot fit the "+theMethod+" curve");
+		return process();
+	}
+
+	// Writes the adjusted slices into a new stack, reading the original ones
+	private ImagePlus process() {
 		ImageStack stack = imp.getStack();
+		ImageStack result = new ImageStack(stack.getWidth(), stack.getHeight(), stackSize);
+		int bitDepth = imp.getBitDepth();
+		int range = bitDepth == 16 ? 65536 : 256;
+
+		// The min/max curve of the 8 and 16-bit stacks does not depend on the pixels
+		double[] mins = new double[stackSize+1];
+		double[] maxs = new double[stackSize+1];
 		for (int s=1; s <= stackSize; s++) {
-			IJ.showProgress(s, stackSize);
-			ImageProcessor slice_p = stack.getProcessor(s);
-			double min = getMin(s);
-			double max = getMax(slice_p,min);
-			normalize(slice_p,min,max);
+			mins[s] = getMin(s);
+			if (bitDepth == 8 || bitDepth == 16) maxs[s] = getMax(bitDepth, null, mins[s]);
+		}
+
+		// Slices in parallel, each band building its tables in the same buffer
+		AtomicInteger slices_done = new AtomicInteger();
+		ParallelBands bands = new ParallelBands(n_threads);
+		try {
+			bands.run(1, stackSize+1, bands.defaultBands(stackSize), (s0, s1) -> {
+				int[] lut = new int[range];
+				for (int s=s0; s < s1; s++) {
+					// A virtual stack is not thread-safe: its slices are read one at a time
+					Object pixels;
+					String label;
+					synchronized (stack) {
+						pixels = stack.getPixels(s);
+						label = stack.getSliceLabel(s);
+					}
+					if (pixels instanceof byte[]) {
+						buildTable(lut, mins[s], maxs[s]);
+						byte[] adjusted = new byte[((byte[]) pixels).length];
+						applyTable((byte[]) pixels, adjusted, lut);
+						result.setPixels(adjusted, s);
+					} else if (pixels instanceof short[]) {
+						buildTable(lut, mins[s], maxs[s]);
+						short[] adjusted = new short[((short[]) pixels).length];
+						applyTable((short[]) pixels, adjusted, lut);
+						result.setPixels(adjusted, s);
+					} else if (pixels instanceof float[]) {
+						float[] slice_pixels = (float[]) pixels;
+						float[] adjusted = new float[slice_pixels.length];
+						normalizeFloat(slice_pixels, adjusted, mins[s], getMax(bitDepth, slice_pixels, mins[s]));
+						result.setPixels(adjusted, s);
+					} else {
+						ImageProcessor slice_p = new ColorProcessor(stack.getWidth(), stack.getHeight(), ((int[]) pixels).clone());
+						normalize(slice_p, mins[s], getMax(bitDepth, null, mins[s]));
+						result.setPixels(slice_p.getPixels(), s);
+					}
+					result.setSliceLabel(label, s);
+					IJ.showProgress(slices_done.incrementAndGet(), stackSize);
+				}
+			});
+		} finally {
+			bands.shutdown();
 		}
 
-		imp.show();
+		ImagePlus adjusted = new ImagePlus("Adjusted Brightness", result);
+		adjusted.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+		adjusted.setOpenAsHyperStack(imp.isHyperStack());
+		adjusted.setCalibration(imp.getCalibration());
+		if (bitDepth != 24) adjusted.setDisplayRange(0.0, bitDepth == 32 ? 1.0 : range-1);
+		return adjusted;
+	}
+
+	// Same table as normalize, filling the parts below min and above max at once
+	static void buildTable(int[] lut, double min, double max) {
+		int range = lut.length;
+		int max2 = range-1;
+		// lut[i] = 0 while i <= min, then max2 from the first i >= max
+		int low = Double.isNaN(min) || min < 0 ? 0 : (int) Math.min(Math.floor(min) + 1, range);
+		int high = Double.isNaN(max) ? range : (int) Math.min(Math.max(Math.ceil(max), low), range);
+		Arrays.fill(lut, 0, low, 0);
+		for (int i=low; i < high; i++) {
+			lut[i] = (int)(((i-min)/(max-min))*max2);
+		}
+		Arrays.fill(lut, high, range, max2);
+	}
+
+	static void applyTable(byte[] pixels, byte[] result, int[] lut) {
+		for (int k=0; k < pixels.length; k++) {
+			result[k] = (byte) lut[pixels[k] & 0xff];
+		}
+	}
+
+	static void applyTable(short[] pixels, short[] result, int[] lut) {
+		for (int k=0; k < pixels.length; k++) {
+			result[k] = (short) lut[pixels[k] & 0xffff];
+		}
 	}
 
 	public void showAbout() {
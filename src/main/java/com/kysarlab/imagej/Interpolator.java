@@ -0,0 +1,192 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package com.kysarlab.imagej;
+
+import java.util.Arrays;
+
+// Interpolation of a Z-column at a fixed fraction between consecutive samples.
+// An instance holds scratch buffers for columns of n samples, so each thread
+// needs its own (see create).
+interface Interpolator {
+
+	String[] METHODS = {"Linear","Monotone Cubic","Catmull-Rom","Akima"};
+
+	// Writes the value at k+alpha into out[k][idx], for k = 0..n-2
+	void interpolate(double[] y, double alpha, float[][] out, int idx);
+
+	static Interpolator create(String method, int n) {
+		if (method.equals(METHODS[1])) return new MonotoneCubic(n);
+		if (method.equals(METHODS[2])) return new CatmullRom(n);
+		if (method.equals(METHODS[3])) return new Akima(n);
+		return new Linear(n);
+	}
+
+	final class Linear implements Interpolator {
+		private final int n;
+
+		Linear(int n) {
+			this.n = n;
+		}
+
+		public void interpolate(double[] y, double alpha, float[][] out, int idx) {
+			double beta = 1-alpha;
+			for (int k=0; k < n-1; k++) {
+				out[k][idx] = (float) (y[k]*beta+y[k+1]*alpha);
+			}
+		}
+	}
+
+	// Cubic Hermite interpolation, the subclasses only choose the slopes m
+	abstract class Hermite implements Interpolator {
+		protected final int n;
+		protected final double[] m;
+
+		Hermite(int n) {
+			this.n = n;
+			m = new double[n];
+		}
+
+		abstract void slopes(double[] y);
+
+		public final void interpolate(double[] y, double alpha, float[][] out, int idx) {
+			slopes(y);
+			double h00 = (1+2*alpha)*(1-alpha)*(1-alpha);
+			double h10 = alpha*(1-alpha)*(1-alpha);
+			double h01 = alpha*alpha*(3-2*alpha);
+			double h11 = alpha*alpha*(alpha-1);
+			for (int k=0; k < n-1; k++) {
+				out[k][idx] = (float) (y[k]*h00 + m[k]*h10 + y[k+1]*h01 + m[k+1]*h11);
+			}
+		}
+	}
+
+	// Fritsch-Carlson slopes, which keep the interpolation monotone between samples
+	final class MonotoneCubic extends Hermite {
+		private final double[] d;
+
+		MonotoneCubic(int n) {
+			super(n);
+			d = new double[n];
+		}
+
+		private static boolean isZero(double val) {
+			return (Math.abs(val) < 2 * Double.MIN_VALUE);
+		}
+
+		void slopes(double[] y) {
+			Arrays.fill(d, 0.0);
+			Arrays.fill(m, 0.0);
+			int ph,pi,pj;
+			for (int s=1; s <= n-1; s++) {
+				ph = s-1-1; //k-1
+				pi = s  -1; //k
+				pj = s+1-1; //k+1
+				d[pi] = y[pj] - y[pi]; //dk = yk+1 - yk
+
+				if (isZero(d[pi])) { // if dk==0
+					m[pi]=0.0; // mk=0
+					if (s==n-1) { // if k==n-1
+						m[pj]=0.0;
+					}
+
+				} else if (s==1) { // if k==1
+					m[pi]=d[pi]; //mk=dk
+
+				} else if (s==n-1) { // if k==n-1
+					m[pj]=d[pi]; //mn=dn-1
+
+				} else if (isZero(d[ph])) { // if dk-1==0
+					m[pi]=0.0; // mk=0
+
+				} else if (d[ph]*d[pi]<0.0) {
+					m[pi]=0.0; // mk=0
+
+				} else {
+					m[pi]=0.5*(d[ph]+d[pi]);
+				}
+
+				if (!isZero(d[pi])) {
+					double aa=m[pi]/d[pi];
+					if (aa<0) {
+						m[pi] = 0.0;
+					} else if (aa>3) {
+						m[pi] = 3.0*d[pi];
+					}
+
+				} else if (s!=1 && !isZero(d[ph])) {
+					double bb=m[pi]/d[ph];
+					if (bb<0) {
+						m[pi] = 0.0;
+					} else if (bb>3) {
+						m[ph] = 3.0*d[ph];
+					}
+				}
+
+				if (s==n-1 && !isZero(d[pi])) {
+					double bb=m[pj]/d[pi];
+					if (bb>3) {
+						m[pi] = 3.0*d[pi];
+					}
+				}
+			}
+		}
+	}
+
+	// Central differences, one-sided at the ends
+	final class CatmullRom extends Hermite {
+
+		CatmullRom(int n) {
+			super(n);
+		}
+
+		void slopes(double[] y) {
+			if (n < 2) {
+				Arrays.fill(m, 0.0);
+				return;
+			}
+			m[0] = y[1]-y[0];
+			for (int k=1; k < n-1; k++) {
+				m[k] = 0.5*(y[k+1]-y[k-1]);
+			}
+			m[n-1] = y[n-1]-y[n-2];
+		}
+	}
+
+	// Akima slopes: weighted by the change of the neighbouring deltas, so that
+	// isolated outliers do not make the curve overshoot. The deltas are extended
+	// by two on each side with the usual quadratic extrapolation.
+	final class Akima extends Hermite {
+		private final double[] e; // e[k+2] = y[k+1]-y[k], for k = -2..n
+
+		Akima(int n) {
+			super(n);
+			e = new double[n+3];
+		}
+
+		void slopes(double[] y) {
+			if (n < 3) {
+				for (int k=0; k < n; k++) m[k] = n < 2 ? 0.0 : y[1]-y[0];
+				return;
+			}
+			for (int k=0; k < n-1; k++) {
+				e[k+2] = y[k+1]-y[k];
+			}
+			e[1] = 2*e[2]-e[3];
+			e[0] = 2*e[1]-e[2];
+			e[n+1] = 2*e[n]-e[n-1];
+			e[n+2] = 2*e[n+1]-e[n];
+			for (int k=0; k < n; k++) {
+				double w1 = Math.abs(e[k+3]-e[k+2]);
+				double w2 = Math.abs(e[k+1]-e[k]);
+				double sum = w1+w2;
+				m[k] = sum > 0.0 ? (w1*e[k+1] + w2*e[k+2])/sum : 0.5*(e[k+1]+e[k+2]);
+			}
+		}
+	}
+}
@@ -6,4 +6,261 @@
  *     http://creativecommons.org/publicdomain/zero/1.0/
  */
 
+package com.kysarlab.imagej;
 
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Prefs;
+import ij.io.OpenDialog;
+import ij.plugin.PlugIn;
+
+// Batch pipeline: runs a chain of the Kysar Lab plugins on every TIFF of a folder,
+// passing the intermediate images in memory, without any window. The chain is set
+// in a properties file, e.g.
+//
+//   input = /data/stacks
+//   output = /data/results
+//   stages = Flatten_Membrane, Average_Height, Smooth_NoBleed, Curvature, Make_PLY
+//   Flatten_Membrane = interpolation=[Monotone Cubic] minimum=10 maximum=255 standard=10 threads=2
+//   Smooth_NoBleed = background=0 number=4 standard=10 threads=2
+//   Curvature = method=[Satelite Points] pixel=20 threads=2
+//   Make_PLY = ply=[Binary Little Endian]
+//
+// The options of each stage are those recorded by the macro recorder. Flatten_Membrane,
+// Average_Height, Smooth_NoBleed and Gradual_Brightness replace the current image.
+// Curvature and Make_PLY write their result (<name>_curvature.tif, <name>.ply) and
+// leave the current image as it is. The last image is saved as <name>_result.tif
+// unless "save_result = false".
+//
+// Files are processed concurrently by "files" workers (default: available
+// processors), as long as their estimated memory fits in the heap. The stages
+// without a "threads" option share ImageJ's threads between the workers. The time
+// of every stage (or its error, e.g. out of memory) goes to pipeline_timings.csv
+// in the output folder.
+public class KysarLab_Plugins implements PlugIn {
+
+	static final String[] STAGES = {"Flatten_Membrane","Average_Height","Smooth_NoBleed","Gradual_Brightness","Curvature","Make_PLY"};
+
+	// Working memory of a file, as a multiple of its size on disk
+	private static final long MEMORY_FACTOR = 12;
+
+	private File input_dir, output_dir;
+	private String[] stages;
+	private Properties config;
+	private int n_files;
+	private int stage_threads; // for the stages without a "threads" option
+	private boolean save_result;
+
+	// Runs the pipeline described by the file given as "config=<path>" in the
+	// options, or chosen in a dialog
+	public void run(String arg) {
+		String options = Parameters.getOptions(arg);
+		String path = Parameters.getValue(options, "config", null);
+		if (path == null && !GraphicsEnvironment.isHeadless()) {
+			OpenDialog od = new OpenDialog("Pipeline configuration ...", null);
+			if (od.getFileName() != null) path = od.getDirectory() + od.getFileName();
+		}
+		if (path == null) {
+			IJ.error("Batch Pipeline", "No pipeline configuration (config=...)");
+			return;
+		}
+		try {
+			File csv = runPipeline(load(new File(path)));
+			IJ.log("Batch Pipeline: timings written to " + csv);
+		} catch (IOException | IllegalArgumentException e) {
+			IJ.error("Batch Pipeline", e.getMessage());
+		}
+	}
+
+	/**
+	 * Runs the pipeline on all the TIFF files of the input folder.
+	 *
+	 * @param config the pipeline configuration (see the class comment)
+	 * @return the CSV file with the time of each stage
+	 * @throws IOException if the output folder or the CSV file cannot be written
+	 */
+	public File runPipeline(Properties config) throws IOException {
+		setup(config);
+		File[] files = input_dir.listFiles((dir, name) -> {
+			String lower = name.toLowerCase(Locale.ROOT);
+			return lower.endsWith(".tif") || lower.endsWith(".tiff");
+		});
+		if (files == null) throw new IOException("Cannot list " + input_dir);
+		Arrays.sort(files);
+		if (!output_dir.isDirectory() && !output_dir.mkdirs()) throw new IOException("Cannot create " + output_dir);
+
+		// Memory permits in MB: a file waits until its estimate fits in the heap
+		int heap_mb = (int) Math.min(Math.max(Runtime.getRuntime().maxMemory() >> 20, 1), Integer.MAX_VALUE);
+		Semaphore memory = new Semaphore(heap_mb);
+
+		// The files run side by side, so each stage only gets its share of the threads
+		int n_workers = Math.max(Math.min(n_files, files.length), 1);
+		stage_threads = Math.max(Prefs.getThreads() / n_workers, 1);
+
+		List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+		ExecutorService workers = Executors.newFixedThreadPool(n_workers);
+		try {
+			for (File file : files) {
+				int needed_mb = (int) Math.min(Math.max((file.length() * MEMORY_FACTOR) >> 20, 1), heap_mb);
+				results.add(workers.submit(() -> {
+					memory.acquire(needed_mb);
+					try {
+						return processFile(file);
+					} finally {
+						memory.release(needed_mb);
+					}
+				}));
+			}
+
+			File csv = new File(output_dir, "pipeline_timings.csv");
+			try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(csv.toPath(), StandardCharsets.UTF_8))) {
+				out.println("file,stage,milliseconds,status");
+				for (int k=0; k < results.size(); k++) {
+					IJ.showProgress(k, results.size());
+					for (String line : results.get(k).get()) out.println(line);
+				}
+			}
+			IJ.showProgress(1.0);
+			return csv;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} finally {
+			workers.shutdownNow();
+		}
+	}
+
+	private void setup(Properties config) {
+		this.config = config;
+		String input = config.getProperty("input");
+		if (input == null) throw new IllegalArgumentException("No input folder (input=...)");
+		input_dir = new File(input.trim());
+		output_dir = new File(config.getProperty("output", input).trim());
+		stages = config.getProperty("stages", "").trim().split("\\s*,\\s*");
+		for (String stage : stages) {
+			if (!Arrays.asList(STAGES).contains(stage)) {
+				throw new IllegalArgumentException("Unknown stage \"" + stage + "\", expected one of " + Arrays.toString(STAGES));
+			}
+		}
+		n_files = Integer.parseInt(config.getProperty("files", "" + Runtime.getRuntime().availableProcessors()).trim());
+		save_result = Boolean.parseBoolean(config.getProperty("save_result", "true").trim());
+	}
+
+	// Runs the stages on one file. Returns the CSV lines of the timings. A failure,
+	// running out of memory included, only stops this file.
+	private List<String> processFile(File file) {
+		List<String> lines = new ArrayList<String>();
+		String name = file.getName().replaceFirst("\\.[^.]*$", "");
+		long start = System.nanoTime();
+		long t = start;
+		String stage = "open";
+		try {
+			ImagePlus imp = IJ.openImage(file.getPath());
+			if (imp == null) throw new IOException("Cannot open " + file);
+			lines.add(line(name, stage, t, "ok"));
+
+			for (String s : stages) {
+				stage = s;
+				t = System.nanoTime();
+				imp = runStage(stage, imp, name);
+				lines.add(line(name, stage, t, "ok"));
+			}
+
+			if (save_result) {
+				stage = "save";
+				t = System.nanoTime();
+				if (!IJ.saveAsTiff(imp, new File(output_dir, name + "_result.tif").getPath())) {
+					throw new IOException("Cannot save " + name + "_result.tif");
+				}
+				lines.add(line(name, stage, t, "ok"));
+			}
+			lines.add(line(name, "total", start, "ok"));
+		} catch (Exception e) {
+			lines.add(line(name, stage, t, "error: " + e.getMessage()));
+		} catch (OutOfMemoryError e) {
+			lines.add(line(name, stage, t, "error: out of memory"));
+		}
+		return lines;
+	}
+
+	private ImagePlus runStage(String stage, ImagePlus imp, String name) throws IOException {
+		String options = config.getProperty(stage, "");
+		if (Parameters.getValue(options, "threads", null) == null) options += " threads=" + stage_threads;
+		switch (stage) {
+			case "Flatten_Membrane": return new Flatten_Membrane().process(imp, options);
+			case "Average_Height": return new Average_Height().process(imp, options);
+			case "Smooth_NoBleed": return new Smooth_NoBleed().process(imp, options);
+			case "Gradual_Brightness": return new Gradual_Brightness().process(imp, options);
+			case "Curvature":
+				ImagePlus curvature = new Curvature().process(imp, options);
+				if (!IJ.saveAsTiff(curvature, new File(output_dir, name + "_curvature.tif").getPath())) {
+					throw new IOException("Cannot save " + name + "_curvature.tif");
+				}
+				return imp;
+			case "Make_PLY":
+				if (Parameters.getValue(options, "save", null) == null) {
+					options += " save=[" + new File(output_dir, name + ".ply").getPath() + "]";
+				}
+				new Make_PLY().process(imp, options);
+				return imp;
+		}
+		throw new IllegalArgumentException("Unknown stage " + stage);
+	}
+
+	private static String line(String name, String stage, long start, String status) {
+		double ms = (System.nanoTime() - start) / 1e6;
+		return "\"" + name.replace("\"", "\"\"") + "\"," + stage + "," + String.format(Locale.ROOT, "%.1f", ms)
+			+ ",\"" + status.replace("\"", "\"\"") + "\"";
+	}
+
+	static Properties load(File file) throws IOException {
+		Properties config = new Properties();
+		try (InputStream in = new FileInputStream(file)) {
+			config.load(in);
+		}
+		return config;
+	}
+
+	/**
+	 * Runs the batch pipeline from the command line, without ImageJ's window.
+	 *
+	 * @param args the configuration file, optionally followed by key=value
+	 *   entries that override it (e.g. input=/data/stacks files=4)
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("Usage: KysarLab_Plugins <pipeline.properties> [key=value ...]");
+			System.exit(1);
+		}
+		System.setProperty("java.awt.headless", "true");
+		Properties config = load(new File(args[0]));
+		for (int k=1; k < args.length; k++) {
+			int eq = args[k].indexOf('=');
+			if (eq > 0) config.setProperty(args[k].substring(0, eq), args[k].substring(eq+1));
+		}
+		File csv = new KysarLab_Plugins().runPipeline(config);
+		System.out.println("Timings written to " + csv);
+		System.exit(0);
+	}
+}
@@ -8,20 +8,28 @@
 
 package com.kysarlab.imagej;
 
-import java.awt.FileDialog;
+import java.awt.GraphicsEnvironment;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.io.FileInfo;
+import ij.io.SaveDialog;
 import ij.measure.Calibration;
 import ij.plugin.PlugIn;
-import ij.process.ImageProcessor;
 
 public class Make_PLY implements PlugIn {
 
@@ -37,17 +45,66 @@ public class Make_PLY implements PlugIn {
 
 	// Properties
 	private String plyFileName;
+	private String [] ply_formats = {"Binary Little Endian","ASCII"};
+	private String thePLYFormat;
+	private boolean stream_mesh; // Write rows directly from the pixels
+
+	private int n_threads; // Threads used to encode the binary format
+	private String [] mesh_types = {"Full resolution","Fixed stride","Adaptive (quadtree)"};
+	private String theMeshType;
+	private int stride; // Pixels between vertices of the fixed stride mesh
+	private double tolerance; // Maximum height error of the adaptive mesh
+	private int max_triangles; // Triangle budget of the adaptive mesh (0: no budget)
+
+	// Size of the output buffer used for the binary format
+	private static final int BUFFER_SIZE = 1 << 20;
+	private static final int VERTEX_BYTES = 12; // 3 floats
+	private static final int FACE_BYTES = 13; // uchar + 3 ints
 
 	// FUNCTIONS
 
-	// To set the final location of the ply file
-	private String getFileLocation(String defaultDir, String defaultName) {
-		FileDialog fd = new FileDialog(IJ.getInstance(), "Set ply file name and location ...", FileDialog.SAVE);
-		fd.setFile(defaultName);
-		fd.setDirectory(defaultDir);
-		fd.show();
+	// Shows dialog (or reads the options, if any)
+	private boolean showDialog(String options) {
+		// specify fields in Dialog
+		Parameters gd = new Parameters("Make PLY properties", options);
+		gd.addRadioButtonGroup("PLY Format:", ply_formats, 2, 1, ply_formats[0]);
+		gd.addCheckbox("Build the whole mesh in memory (instead of streaming it row by row)", false);
+		gd.addNumericField("Threads (binary streaming)", Prefs.getThreads(), 0);
+		gd.addRadioButtonGroup("Mesh:", mesh_types, 3, 1, mesh_types[0]);
+		gd.addNumericField("Stride", 4, 0, 6, "pixels");
+		gd.addNumericField("Height tolerance", pix_depth, 4);
+		gd.addNumericField("Triangle budget (0: no budget)", 0, 0);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return false;
+
+		// get entered values
+		thePLYFormat = gd.getNextRadioButton();
+		stream_mesh = !gd.getNextBoolean();
+		n_threads = Math.max((int) gd.getNextNumber(), 1);
+		theMeshType = gd.getNextRadioButton();
+		stride = Math.max((int) gd.getNextNumber(), 1);
+		tolerance = gd.getNextNumber();
+		max_triangles = (int) gd.getNextNumber();
+
+		return true;
+	}
+
+	// To set the final location of the ply file: the "save" option when there are
+	// options (by default next to the original image), else a save dialog.
+	// Returns null if cancelled or unknown.
+	private String getFileLocation(String options) {
+		FileInfo fiOriginal = imp.getOriginalFileInfo();
+		String defaultDir = fiOriginal != null && fiOriginal.directory != null && !fiOriginal.directory.isEmpty() ? fiOriginal.directory : null;
+		String defaultName = imp.getShortTitle()+".ply";
 
-		return fd.getDirectory()+fd.getFile();
+		if (options != null || GraphicsEnvironment.isHeadless()) {
+			String defaultPath = defaultDir != null ? new File(defaultDir, defaultName).getPath() : null;
+			return Parameters.getValue(options, "save", defaultPath);
+		}
+		SaveDialog sd = new SaveDialog("Set ply file name and location ...", defaultDir, defaultName, ".ply");
+		if (sd.getFileName() == null) return null;
+		return sd.getDirectory()+sd.getFileName();
 	}
 
 	// Collect relevant properties of the stack
@@ -108,20 +165,35 @@ public class Make_PLY implements PlugIn {
 		return vertices;
 	} 
 
-	public void writePLYToFile(String fileName, float[]nodes, int[]faces) throws IOException {
+	private String getASCIIHeader(long num_nodes, long num_faces) {
 		String str = "ply\nformat ascii 1.0\ncomment VCGLIB generated\n";
+		str += "element vertex "+Long.toString(num_nodes)+ "\n";
+		str += "property float x\nproperty float y\nproperty float z\n";
+		str += "element face "+Long.toString(num_faces)+ "\n";
+		str += "property list uchar int vertex_indices\nend_header\n";
+		return str;
+	}
+
+	private byte[] getBinaryHeader(long num_nodes, long num_faces) {
+		String str = "ply\nformat binary_little_endian 1.0\n";
+		str += "element vertex "+Long.toString(num_nodes)+ "\n";
+		str += "property float x\nproperty float y\nproperty float z\n";
+		str += "element face "+Long.toString(num_faces)+ "\n";
+		str += "property list uchar int vertex_indices\nend_header\n";
+		return str.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private FileChannel openChannel(String fileName) throws IOException {
+		return FileChannel.open(Paths.get(fileName),
+			StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+	}
+
+	public void writePLYToFile(String fileName, float[]nodes, int[]faces) throws IOException {
 		BufferedWriter writer = new BufferedWriter(new FileWriter(fileName));
-		writer.write(str);
-		str = "element vertex "+Integer.toString(num_pix_high*num_pix_wide)+ "\n";
-		writer.write(str);
-		str = "property float x\nproperty float y\nproperty float z\n";
-		writer.write(str);
-		str = "element face "+Integer.toString((num_pix_high*num_pix_wide-(num_pix_high+num_pix_wide-1))*2)+ "\n";
-		writer.write(str);
-		str = "property list uchar int vertex_indices\nend_header\n";
-		writer.write(str);
+		writer.write(getASCIIHeader(nodes.length/3, faces.length/3));
 
 		//write nodes
+		String str;
 		for(int n = 0; n < nodes.length/3; n++){
 			str = Float.toString(nodes[n*3]) + " " + Float.toString(nodes[n*3+1]) + " " + Float.toString(nodes[n*3+2]) + "\n";
 			writer.write(str);
@@ -136,39 +208,236 @@ public class Make_PLY implements PlugIn {
 		writer.close();
 	}
 
+	public void writeBinaryPLYToFile(String fileName, float[]nodes, int[]faces) throws IOException {
+		FileChannel channel = openChannel(fileName);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			buffer.put(getBinaryHeader(nodes.length/3, faces.length/3));
+
+			//write nodes (3 floats per vertex)
+			for(int n = 0; n < nodes.length; n += 3){
+				if (buffer.remaining() < VERTEX_BYTES) flushBuffer(channel, buffer);
+				buffer.putFloat(nodes[n]).putFloat(nodes[n+1]).putFloat(nodes[n+2]);
+			}
+
+			//write faces (uchar count followed by 3 ints per face)
+			for(int f = 0; f < faces.length; f += 3){
+				if (buffer.remaining() < FACE_BYTES) flushBuffer(channel, buffer);
+				buffer.put((byte) 3).putInt(faces[f]).putInt(faces[f+1]).putInt(faces[f+2]);
+			}
+			flushBuffer(channel, buffer);
+		} finally {
+			channel.close();
+		}
+	}
+
+	// Same mesh as listNodesByCoordinates/listFacesByNodeVertices, but each row of
+	// vertices and faces is computed from the pixels and written straight away,
+	// so no memory is needed besides the output buffers.
+	// Binary records have a fixed size, so the rows are split into bands that are
+	// encoded concurrently and placed in the file with positional writes.
+	public void writeBinaryPLYStreamed(String fileName, float[] z_values) throws IOException {
+		int npw = num_pix_wide;
+		int nph = num_pix_high;
+		byte[] header = getBinaryHeader((long) npw*nph, (long) (npw-1)*(nph-1)*2);
+		long vertex_start = header.length;
+		long face_start = vertex_start + (long) npw*nph*VERTEX_BYTES;
+
+		FileChannel channel = openChannel(fileName);
+		ParallelBands bands = new ParallelBands(n_threads);
+		// One output buffer per worker thread, reused by all its bands
+		ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN));
+		try {
+			writeFully(channel, ByteBuffer.wrap(header), 0);
+
+			//write nodes, band of rows by band of rows
+			bands.run(nph, bands.defaultBands(nph), (j0, j1) -> {
+				ByteBuffer buffer = buffers.get();
+				buffer.clear();
+				long position = vertex_start + (long) j0*npw*VERTEX_BYTES;
+				try {
+					for(int j = j0; j < j1; j++){
+						float y = (float) ((nph-j-1) * pix_width);
+						for(int i = 0; i < npw; i++){
+							if (buffer.remaining() < VERTEX_BYTES) position = flushBuffer(channel, buffer, position);
+							buffer.putFloat((float) (i * pix_width)).putFloat(y).putFloat((float) (z_values[i + j*npw] * pix_depth));
+						}
+					}
+					flushBuffer(channel, buffer, position);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+
+			//write faces, band of rows by band of rows (two triangles per square, counter-clockwise)
+			bands.run(nph-1, bands.defaultBands(nph-1), (j0, j1) -> {
+				ByteBuffer buffer = buffers.get();
+				buffer.clear();
+				long position = face_start + (long) j0*(npw-1)*2*FACE_BYTES;
+				try {
+					for(int j = j0; j < j1; j++){
+						for(int i = 0; i < npw-1; i++){
+							int n = i + j*npw;
+							if (buffer.remaining() < 2*FACE_BYTES) position = flushBuffer(channel, buffer, position);
+							buffer.put((byte) 3).putInt(n+1).putInt(n).putInt(n+npw);
+							buffer.put((byte) 3).putInt(n+npw+1).putInt(n+1).putInt(n+npw);
+						}
+					}
+					flushBuffer(channel, buffer, position);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			bands.shutdown();
+			channel.close();
+		}
+	}
+
+	public void writePLYStreamed(String fileName, float[] z_values) throws IOException {
+		int npw = num_pix_wide;
+		int nph = num_pix_high;
+		BufferedWriter writer = new BufferedWriter(new FileWriter(fileName), BUFFER_SIZE);
+		try {
+			writer.write(getASCIIHeader((long) npw*nph, (long) (npw-1)*(nph-1)*2));
+
+			//write nodes, row by row
+			StringBuilder row = new StringBuilder();
+			for(int j = 0; j < nph; j++){
+				float y = (float) ((nph-j-1) * pix_width);
+				row.setLength(0);
+				for(int i = 0; i < npw; i++){
+					row.append((float) (i * pix_width)).append(' ').append(y).append(' ');
+					row.append((float) (z_values[i + j*npw] * pix_depth)).append('\n');
+				}
+				writer.append(row);
+			}
+
+			//write faces, row by row
+			for(int j = 0; j < nph-1; j++){
+				row.setLength(0);
+				for(int i = 0; i < npw-1; i++){
+					int n = i + j*npw;
+					row.append("3 ").append(n+1).append(' ').append(n).append(' ').append(n+npw).append('\n');
+					row.append("3 ").append(n+npw+1).append(' ').append(n+1).append(' ').append(n+npw).append('\n');
+				}
+				writer.append(row);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	// Writes the content of the buffer to the channel and clears it for reuse
+	private void flushBuffer(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) channel.write(buffer);
+		buffer.clear();
+	}
+
+	// Writes the content of the buffer at the given file position and clears it for reuse.
+	// Returns the position right after the written bytes.
+	private long flushBuffer(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		buffer.flip();
+		position = writeFully(channel, buffer, position);
+		buffer.clear();
+		return position;
+	}
+
+	private long writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) position += channel.write(buffer, position);
+		return position;
+	}
+
 
 	// When you click the button
     public void run(String arg) {
 
 		// Get the current image
 		imp = WindowManager.getCurrentImage(); // IJ.runPlugIn("Average_Height",""); ImagePlus avg_height = WindowManager.getImage("Average Height");
+		if (imp == null) {IJ.noImage(); return;}
 		// Get img info
 		getInfo(imp);
 
-		// Get Image Pixels
-		ImageProcessor img_p = imp.getProcessor();
-		float[] img_pix = (float[]) img_p.getPixels();
+		// Run the dialog to get parameters and exits if cancelled
+		String options = Parameters.getOptions(arg);
+		if (!showDialog(options)) {return;}
 		
 		// Select Save Location
-		FileInfo fiOriginal = imp.getOriginalFileInfo();
-		plyFileName = getFileLocation(fiOriginal.directory, imp.getShortTitle()+".ply");
-
-		//Get Nodes
-		float[] nodes;
-		nodes = listNodesByCoordinates(img_pix);
-
-		//Get faces
-		int[] faces;
-		faces = listFacesByNodeVertices();
+		plyFileName = getFileLocation(options);
+		if (plyFileName == null) {return;}
 
 		//Write PLY 
-		System.out.println(plyFileName);
 		try {
-			writePLYToFile(plyFileName, nodes, faces);
+			writePLY();
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			System.err.println("Caught IOException: " + e.getMessage());
+			IJ.error("Make PLY", "Cannot write "+plyFileName+": "+e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes the PLY file of a height image without showing any dialog.
+	 *
+	 * @param imp the height image
+	 * @param options the parameters, as recorded by the macro recorder
+	 *   (e.g. "ply=[Binary Little Endian] mesh=[Full resolution] save=/path/to/file.ply");
+	 *   missing ones take their default value (the mesh is streamed unless "build" is given),
+	 *   the default file is next to the original image
+	 * @return the PLY file
+	 * @throws IOException if the file cannot be written
+	 */
+	public File process(ImagePlus imp, String options) throws IOException {
+		this.imp = imp;
+		getInfo(imp);
+		if (options == null) options = "";
+		showDialog(options);
+		plyFileName = getFileLocation(options);
+		if (plyFileName == null) throw new IllegalArgumentException("Make PLY: no file given (save=...)");
+		writePLY();
+		return new File(plyFileName);
+	}
+
+	private void writePLY() throws IOException {
+		// Get Image Pixels, as float values whatever the type of the image
+		float[] img_pix = SliceView.of(imp).getPixels(null);
+
+		boolean ascii = thePLYFormat.equals("ASCII");
+		if (!theMeshType.equals(mesh_types[0])) {
+			SimplifiedMesh mesh;
+			if (theMeshType.equals(mesh_types[1])) {
+				mesh = SimplifiedMesh.byStride(img_pix, num_pix_wide, num_pix_high, stride, pix_width, pix_depth);
+			} else {
+				mesh = SimplifiedMesh.adaptive(img_pix, num_pix_wide, num_pix_high, tolerance, max_triangles, pix_width, pix_depth);
+			}
+			IJ.log("Make PLY: "+(mesh.nodes.length/3)+" vertices, "+(mesh.faces.length/3)+" faces");
+
+			if (ascii) {
+				writePLYToFile(plyFileName, mesh.nodes, mesh.faces);
+			} else {
+				writeBinaryPLYToFile(plyFileName, mesh.nodes, mesh.faces);
+			}
+		} else if (stream_mesh) {
+			if (ascii) {
+				writePLYStreamed(plyFileName, img_pix);
+			} else {
+				writeBinaryPLYStreamed(plyFileName, img_pix);
+			}
+		} else {
+			//Get Nodes
+			float[] nodes;
+			nodes = listNodesByCoordinates(img_pix);
+
+			//Get faces
+			int[] faces;
+			faces = listFacesByNodeVertices();
+
+			if (ascii) {
+				writePLYToFile(plyFileName, nodes, faces);
+			} else {
+				writeBinaryPLYToFile(plyFileName, nodes, faces);
+			}
 		}
 
 		// //Write nodes and vertices into PLY file
@@ -0,0 +1,107 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package com.kysarlab.imagej;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Splits a range of rows (or pixels, slices, ...) into bands and runs them on a ForkJoin pool
+class ParallelBands {
+
+	// Work done on the range [start, end)
+	interface Band {
+		void run(int start, int end);
+	}
+
+	private final int nThreads;
+	private final ForkJoinPool pool; // null when single threaded
+
+	ParallelBands(int nThreads) {
+		this.nThreads = Math.max(nThreads, 1);
+		pool = this.nThreads > 1 ? new ForkJoinPool(this.nThreads) : null;
+	}
+
+	int getThreads() {
+		return nThreads;
+	}
+
+	// Runs the range [0, n) split into (at most) nBands bands and waits for all of them
+	void run(int n, int nBands, Band band) {
+		run(0, n, nBands, band);
+	}
+
+	// Runs the range [start, end) split into (at most) nBands bands and waits for all of them
+	void run(int start, int end, int nBands, Band band) {
+		int n = end - start;
+		if (n <= 0) return;
+		nBands = Math.max(Math.min(nBands, n), 1);
+		if (pool == null || nBands == 1) {
+			band.run(start, end);
+			return;
+		}
+
+		// Once a band failed, the bands that did not start yet are skipped
+		AtomicBoolean failed = new AtomicBoolean();
+		List<Future<?>> futures = new ArrayList<Future<?>>(nBands);
+		for (int b = 0; b < nBands; b++) {
+			final int b0 = start + (int) ((long) n * b / nBands);
+			final int b1 = start + (int) ((long) n * (b + 1) / nBands);
+			futures.add(pool.submit(new Runnable() {
+				public void run() {
+					if (failed.get()) return;
+					try {
+						band.run(b0, b1);
+					} catch (RuntimeException | Error e) {
+						failed.set(true);
+						throw e;
+					}
+				}
+			}));
+		}
+
+		// Waits for every band, even after a failure, so that none is still running
+		// (e.g. writing to a file about to be closed) when this returns or throws
+		Throwable failure = null;
+		boolean interrupted = false;
+		for (Future<?> future : futures) {
+			while (true) {
+				try {
+					future.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+					failed.set(true);
+				} catch (ExecutionException e) {
+					if (failure == null) failure = e.getCause();
+					break;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+			if (failure == null) failure = new InterruptedException();
+		}
+		if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+		if (failure instanceof Error) throw (Error) failure;
+		if (failure != null) throw new RuntimeException(failure);
+	}
+
+	// Number of bands to give each thread some room for load balancing
+	int defaultBands(int n) {
+		return Math.min(n, nThreads * 4);
+	}
+
+	void shutdown() {
+		if (pool != null) pool.shutdown();
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package com.kysarlab.imagej;
+
+import java.awt.GraphicsEnvironment;
+import java.util.ArrayList;
+import java.util.List;
+
+import ij.Macro;
+import ij.gui.GenericDialog;
+
+// Plugin parameters with the GenericDialog calls. Without options they come from the
+// dialog (which records them for macros). With options, e.g. "threads=4 method=[Gradient
+// Based]", they are read from the options with the keys GenericDialog uses (first word
+// of the label, lower case), the missing ones taking their default values, except the
+// checkboxes: as in macros, a checkbox is only checked if its key is there. Blank
+// options (as when running headless without options) give all the default values,
+// checkboxes included. This needs no display.
+class Parameters {
+
+	private final String title;
+	private final String options; // null when the dialog is shown
+	private final boolean blank; // no option given: checkboxes keep their default
+	private final GenericDialog gd;
+
+	private final List<String> labels = new ArrayList<String>();
+	private final List<Object> defaults = new ArrayList<Object>();
+	private final List<String[]> items = new ArrayList<String[]>();
+	private int next;
+
+	Parameters(String title, String options) {
+		this.title = title;
+		if (options == null && GraphicsEnvironment.isHeadless()) options = "";
+		this.options = options == null ? null : options + " ";
+		blank = options != null && options.trim().isEmpty();
+		gd = options == null ? new GenericDialog(title) : null;
+	}
+
+	// Options given to the plugin: the run argument, else the macro options (null if none)
+	static String getOptions(String arg) {
+		if (arg != null && !arg.trim().isEmpty()) return arg;
+		return Macro.getOptions();
+	}
+
+	// Value of key in options, or defaultValue
+	static String getValue(String options, String key, String defaultValue) {
+		return options == null ? defaultValue : Macro.getValue(options + " ", key, defaultValue);
+	}
+
+	void addNumericField(String label, double defaultValue, int digits) {
+		if (gd != null) gd.addNumericField(label, defaultValue, digits);
+		add(label, defaultValue, null);
+	}
+
+	void addNumericField(String label, double defaultValue, int digits, int columns, String units) {
+		if (gd != null) gd.addNumericField(label, defaultValue, digits, columns, units);
+		add(label, defaultValue, null);
+	}
+
+	void addStringField(String label, String defaultText, int columns) {
+		if (gd != null) gd.addStringField(label, defaultText, columns);
+		add(label, defaultText, null);
+	}
+
+	void addCheckbox(String label, boolean defaultValue) {
+		if (gd != null) gd.addCheckbox(label, defaultValue);
+		add(label, defaultValue, null);
+	}
+
+	void addRadioButtonGroup(String label, String[] choices, int rows, int columns, String defaultItem) {
+		if (gd != null) gd.addRadioButtonGroup(label, choices, rows, columns, defaultItem);
+		add(label, defaultItem, choices);
+	}
+
+	void showDialog() {
+		if (gd != null) gd.showDialog();
+	}
+
+	boolean wasCanceled() {
+		return gd != null && gd.wasCanceled();
+	}
+
+	double getNextNumber() {
+		int index = next++;
+		if (gd != null) return gd.getNextNumber();
+		String value = getValue(options, key(index), null);
+		return value == null ? (Double) defaults.get(index) : parse(value, index);
+	}
+
+	String getNextString() {
+		int index = next++;
+		if (gd != null) return gd.getNextString();
+		return getValue(options, key(index), (String) defaults.get(index));
+	}
+
+	// As in macros, a checkbox is checked if its key is in the options
+	boolean getNextBoolean() {
+		int index = next++;
+		if (gd != null) return gd.getNextBoolean();
+		if (blank) return (Boolean) defaults.get(index);
+		return (" " + options).contains(" " + key(index) + " ");
+	}
+
+	// The matching item of the choices, so that it can be compared with ==
+	String getNextRadioButton() {
+		int index = next++;
+		String value = gd != null ? gd.getNextRadioButton() : getValue(options, key(index), (String) defaults.get(index));
+		for (String choice : items.get(index)) {
+			if (choice.equals(value)) return choice;
+		}
+		throw new IllegalArgumentException(title + ": \"" + value + "\" is not a valid choice for " + key(index));
+	}
+
+	private void add(String label, Object defaultValue, String[] choices) {
+		labels.add(label);
+		defaults.add(defaultValue);
+		items.add(choices);
+	}
+
+	private String key(int index) {
+		return Macro.trimKey(labels.get(index));
+	}
+
+	private double parse(String value, int index) {
+		try {
+			return Double.parseDouble(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(title + ": \"" + value + "\" is not a valid number for " + key(index));
+		}
+	}
+}
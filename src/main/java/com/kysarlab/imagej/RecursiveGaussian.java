@@ -0,0 +1,273 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package com.kysarlab.imagej;
+
+import ij.process.FloatProcessor;
+
+// Recursive Gaussian blur (Young & van Vliet, 1995): a third order causal filter
+// followed by the same filter run backwards. The cost per pixel does not depend on
+// sigma. Out-of-image pixels are taken equal to the edge pixels, as in
+// ImageProcessor.blurGaussian: the forward pass starts from the steady state of the
+// first pixel, and the backward pass from the exact state of a line that goes on with
+// its last pixel (Triggs & Sdika, 2006).
+class RecursiveGaussian {
+
+	// The recursive coefficients are not accurate below this sigma
+	static final double MIN_SIGMA = 0.5;
+
+	private final double B, a1, a2, a3;
+
+	// Triggs & Sdika matrix (row by row, times B): gives the backward outputs at the last
+	// sample and at the two virtual samples after it from the last three forward outputs,
+	// all relative to the last input sample
+	private final double[] M = new double[9];
+
+	RecursiveGaussian(double sigma) {
+		double q;
+		if (sigma >= 2.5) {
+			q = 0.98711*sigma - 0.96330;
+		} else {
+			q = 3.97156 - 4.14554*Math.sqrt(1 - 0.26891*sigma);
+		}
+		double q2 = q*q;
+		double q3 = q2*q;
+		double b0 = 1.57825 + 2.44413*q + 1.4281*q2 + 0.422205*q3;
+		double b1 = 2.44413*q + 2.85619*q2 + 1.26661*q3;
+		double b2 = -(1.4281*q2 + 1.26661*q3);
+		double b3 = 0.422205*q3;
+		a1 = b1/b0;
+		a2 = b2/b0;
+		a3 = b3/b0;
+		B = 1 - (a1 + a2 + a3);
+
+		double scale = B/((1 + a1 - a2 + a3)*(1 - a1 - a2 - a3)*(1 + a2 + (a1 - a3)*a3));
+		M[0] = scale*(-a3*a1 + 1 - a3*a3 - a2);
+		M[1] = scale*(a3 + a1)*(a2 + a3*a1);
+		M[2] = scale*a3*(a1 + a3*a2);
+		M[3] = scale*(a1 + a3*a2);
+		M[4] = -scale*(a2 - 1)*(a2 + a3*a1);
+		M[5] = -scale*a3*(a3*a1 + a3*a3 + a2 - 1);
+		M[6] = scale*(a3*a1 + a2 + a1*a1 - a2*a2);
+		M[7] = scale*(a1*a2 + a3*a2*a2 - a1*a3*a3 - a3*a3*a3 - a3*a2 + a3);
+		M[8] = scale*a3*(a1 + a3*a2);
+	}
+
+	// Blurs all the images (each w*h) in place. The images go through the row and
+	// column passes together, so each pass walks through memory only once.
+	static void blur(float[][] images, int w, int h, double sigma, ParallelBands bands) {
+		if (sigma <= 0.0) return;
+		if (sigma < MIN_SIGMA) {
+			for (float[] image : images) new FloatProcessor(w, h, image).blurGaussian(sigma);
+			return;
+		}
+		RecursiveGaussian g = new RecursiveGaussian(sigma);
+
+		// Rows: each row is filtered forwards and backwards while it is in cache
+		bands.run(h, bands.defaultBands(h), (j0, j1) -> {
+			for (int j=j0; j < j1; j++) {
+				for (float[] image : images) g.filterRow(image, j*w, w);
+			}
+		});
+
+		// Columns: a band of columns is filtered row by row, keeping the filter
+		// state of each column, so that memory is read along the rows
+		bands.run(w, bands.defaultBands(w), (i0, i1) -> {
+			double[] p1 = new double[i1-i0];
+			double[] p2 = new double[i1-i0];
+			double[] p3 = new double[i1-i0];
+			for (float[] image : images) g.filterLines(image, i0, i1-i0, w, h, p1, p2, p3);
+		});
+	}
+
+	// Pixels per tile for the columns and Z passes of blur3D
+	private static final int TILE = 1024;
+
+	// Blurs a volume, given as its slices (each w*h), in place with sigma in the plane and
+	// sigma_z (in slices) along Z. The columns and Z passes work on tiles of the slices, so
+	// no extra copy of the volume is needed and the filter states stay in cache.
+	static void blur3D(float[][] slices, int w, int h, double sigma, double sigma_z, ParallelBands bands) {
+		int d = slices.length;
+		if (sigma >= MIN_SIGMA) {
+			RecursiveGaussian g = new RecursiveGaussian(sigma);
+			bands.run(d*h, bands.defaultBands(d*h), (r0, r1) -> {
+				for (int r=r0; r < r1; r++) {
+					g.filterRow(slices[r / h], (r % h)*w, w);
+				}
+			});
+			int tiles = (w + TILE - 1) / TILE;
+			bands.run(d*tiles, bands.defaultBands(d*tiles), (t0, t1) -> {
+				double[] p1 = new double[TILE];
+				double[] p2 = new double[TILE];
+				double[] p3 = new double[TILE];
+				for (int t=t0; t < t1; t++) {
+					int i0 = (t % tiles)*TILE;
+					g.filterLines(slices[t / tiles], i0, Math.min(TILE, w-i0), w, h, p1, p2, p3);
+				}
+			});
+		} else if (sigma > 0.0) {
+			// blurGaussian is multithreaded itself, so the slices are not run in parallel
+			for (float[] slice : slices) new FloatProcessor(w, h, slice).blurGaussian(sigma);
+		}
+
+		if (sigma_z <= 0.0 || d < 2) return;
+		int tiles = (w*h + TILE - 1) / TILE;
+		if (sigma_z >= MIN_SIGMA) {
+			RecursiveGaussian g = new RecursiveGaussian(sigma_z);
+			bands.run(tiles, bands.defaultBands(tiles), (t0, t1) -> {
+				double[] p1 = new double[TILE];
+				double[] p2 = new double[TILE];
+				double[] p3 = new double[TILE];
+				for (int t=t0; t < t1; t++) {
+					g.filterZ(slices, t*TILE, Math.min(TILE, w*h - t*TILE), p1, p2, p3);
+				}
+			});
+		} else {
+			float[] kernel = kernel(sigma_z);
+			bands.run(tiles, bands.defaultBands(tiles), (t0, t1) -> {
+				float[] column = new float[d*TILE];
+				for (int t=t0; t < t1; t++) {
+					convolveZ(slices, t*TILE, Math.min(TILE, w*h - t*TILE), kernel, column);
+				}
+			});
+		}
+	}
+
+	// Forward and backward pass over pixels [offset, offset+n)
+	void filterRow(float[] line, int offset, int n) {
+		int end = offset + n;
+		double p1 = line[offset], p2 = p1, p3 = p1;
+		for (int k=offset; k < end-1; k++) {
+			double v = B*line[k] + a1*p1 + a2*p2 + a3*p3;
+			p3 = p2;
+			p2 = p1;
+			p1 = v;
+			line[k] = (float) v;
+		}
+		// Last sample: forward output, then the backward state at the edge
+		double x = line[end-1];
+		double u1 = B*x + a1*p1 + a2*p2 + a3*p3 - x;
+		double u2 = p1 - x;
+		double u3 = p2 - x;
+		p1 = x + M[0]*u1 + M[1]*u2 + M[2]*u3;
+		p2 = x + M[3]*u1 + M[4]*u2 + M[5]*u3;
+		p3 = x + M[6]*u1 + M[7]*u2 + M[8]*u3;
+		line[end-1] = (float) p1;
+		for (int k=end-2; k >= offset; k--) {
+			double v = B*line[k] + a1*p1 + a2*p2 + a3*p3;
+			p3 = p2;
+			p2 = p1;
+			p1 = v;
+			line[k] = (float) v;
+		}
+	}
+
+	// Forward and backward pass over n lines of length len, stored side by side:
+	// line c starts at first + c and its samples are stride apart.
+	void filterLines(float[] data, int first, int n, int stride, int len, double[] p1, double[] p2, double[] p3) {
+		for (int c=0; c < n; c++) {
+			p1[c] = p2[c] = p3[c] = data[first + c];
+		}
+		for (int k=0; k < len-1; k++) {
+			int row = first + k*stride;
+			for (int c=0; c < n; c++) {
+				double v = B*data[row + c] + a1*p1[c] + a2*p2[c] + a3*p3[c];
+				p3[c] = p2[c];
+				p2[c] = p1[c];
+				p1[c] = v;
+				data[row + c] = (float) v;
+			}
+		}
+		edgeState(data, first + (len-1)*stride, n, p1, p2, p3);
+		for (int k=len-2; k >= 0; k--) {
+			int row = first + k*stride;
+			for (int c=0; c < n; c++) {
+				double v = B*data[row + c] + a1*p1[c] + a2*p2[c] + a3*p3[c];
+				p3[c] = p2[c];
+				p2[c] = p1[c];
+				p1[c] = v;
+				data[row + c] = (float) v;
+			}
+		}
+	}
+
+	// Same as filterLines, for the n pixels from first on, along Z through the slices
+	void filterZ(float[][] slices, int first, int n, double[] p1, double[] p2, double[] p3) {
+		int d = slices.length;
+		for (int c=0; c < n; c++) {
+			p1[c] = p2[c] = p3[c] = slices[0][first + c];
+		}
+		for (int z=0; z < d-1; z++) {
+			float[] data = slices[z];
+			for (int c=0; c < n; c++) {
+				double v = B*data[first + c] + a1*p1[c] + a2*p2[c] + a3*p3[c];
+				p3[c] = p2[c];
+				p2[c] = p1[c];
+				p1[c] = v;
+				data[first + c] = (float) v;
+			}
+		}
+		edgeState(slices[d-1], first, n, p1, p2, p3);
+		for (int z=d-2; z >= 0; z--) {
+			float[] data = slices[z];
+			for (int c=0; c < n; c++) {
+				double v = B*data[first + c] + a1*p1[c] + a2*p2[c] + a3*p3[c];
+				p3[c] = p2[c];
+				p2[c] = p1[c];
+				p1[c] = v;
+				data[first + c] = (float) v;
+			}
+		}
+	}
+
+	// Last sample of n lines (data[row + c]): forward pass, then the backward state at the
+	// edge. Leaves the backward output of the last sample in data.
+	private void edgeState(float[] data, int row, int n, double[] p1, double[] p2, double[] p3) {
+		for (int c=0; c < n; c++) {
+			double x = data[row + c];
+			double u1 = B*x + a1*p1[c] + a2*p2[c] + a3*p3[c] - x;
+			double u2 = p1[c] - x;
+			double u3 = p2[c] - x;
+			p1[c] = x + M[0]*u1 + M[1]*u2 + M[2]*u3;
+			p2[c] = x + M[3]*u1 + M[4]*u2 + M[5]*u3;
+			p3[c] = x + M[6]*u1 + M[7]*u2 + M[8]*u3;
+			data[row + c] = (float) p1[c];
+		}
+	}
+
+	// Normalized Gaussian kernel (center first) for the sigmas too small for the recursive filter
+	private static float[] kernel(double sigma) {
+		int radius = (int) Math.ceil(3*sigma);
+		float[] kernel = new float[radius+1];
+		double sum = 0.0;
+		for (int k=0; k <= radius; k++) {
+			kernel[k] = (float) Math.exp(-0.5*k*k/(sigma*sigma));
+			sum += k == 0 ? kernel[k] : 2*kernel[k];
+		}
+		for (int k=0; k <= radius; k++) kernel[k] /= sum;
+		return kernel;
+	}
+
+	// Direct convolution along Z of the n pixels from first on, with the edge slices repeated
+	private static void convolveZ(float[][] slices, int first, int n, float[] kernel, float[] column) {
+		int d = slices.length;
+		for (int z=0; z < d; z++) {
+			System.arraycopy(slices[z], first, column, z*n, n);
+		}
+		for (int z=0; z < d; z++) {
+			float[] data = slices[z];
+			for (int c=0; c < n; c++) {
+				double v = kernel[0]*column[z*n + c];
+				for (int k=1; k < kernel.length; k++) {
+					v += kernel[k]*(column[Math.max(z-k, 0)*n + c] + column[Math.min(z+k, d-1)*n + c]);
+				}
+				data[first + c] = (float) v;
+			}
+		}
+	}
+}
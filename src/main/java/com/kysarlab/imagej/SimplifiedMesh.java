@@ -0,0 +1,343 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package com.kysarlab.imagej;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// Height map meshes with fewer triangles than the one-quad-per-pixel mesh of Make_PLY.
+// Nodes and faces use the same layout (and the same counter-clockwise ordering) as
+// Make_PLY.listNodesByCoordinates and Make_PLY.listFacesByNodeVertices.
+class SimplifiedMesh {
+
+	float[] nodes; // x,y,z of each vertex
+	int[] faces;   // 3 vertex indices per triangle
+
+	private final float[] z_values;
+	private final int w, h;
+	private final double pix_width, pix_depth;
+
+	private int num_nodes, num_faces;
+	private int[] ring = new int[64]; // boundary vertices of a cell (pixel indices), see ring()
+
+	private SimplifiedMesh(float[] z_values, int w, int h, double pix_width, double pix_depth) {
+		this.z_values = z_values;
+		this.w = w;
+		this.h = h;
+		this.pix_width = pix_width;
+		this.pix_depth = pix_depth;
+		nodes = new float[3*64];
+		faces = new int[3*64];
+	}
+
+	// Regular grid that keeps every stride-th pixel (plus the last row and column)
+	static SimplifiedMesh byStride(float[] z_values, int w, int h, int stride, double pix_width, double pix_depth) {
+		SimplifiedMesh mesh = new SimplifiedMesh(z_values, w, h, pix_width, pix_depth);
+		int[] xs = gridLines(w, stride);
+		int[] ys = gridLines(h, stride);
+		int nx = xs.length;
+
+		for (int j = 0; j < ys.length; j++) {
+			for (int i = 0; i < nx; i++) {
+				mesh.addNode(xs[i], ys[j]);
+			}
+		}
+		for (int j = 0; j < ys.length-1; j++) {
+			for (int i = 0; i < nx-1; i++) {
+				int n = i + j*nx;
+				mesh.addFace(n+1, n, n+nx);
+				mesh.addFace(n+nx+1, n+1, n+nx);
+			}
+		}
+		return mesh.trim();
+	}
+
+	// Quadtree mesh: the cell with the largest height error (in calibrated units) is
+	// split until the triangles of all cells are within the tolerance or the triangle
+	// budget is reached (max_triangles <= 0 means no budget). The mesh has at most
+	// max_triangles faces, but never less than the two triangles of the whole image.
+	static SimplifiedMesh adaptive(float[] z_values, int w, int h, double tolerance, int max_triangles, double pix_width, double pix_depth) {
+		// The refinement counts cells, and cells whose edges are shared with smaller
+		// neighbours are closed with a few more triangles: the cell budget is lowered
+		// until the mesh fits in the triangle budget
+		int cell_budget = max_triangles;
+		while (true) {
+			SimplifiedMesh mesh = adaptiveMesh(z_values, w, h, tolerance, cell_budget, pix_width, pix_depth);
+			int n = mesh.faces.length/3;
+			if (max_triangles <= 0 || n <= max_triangles || cell_budget <= 2) return mesh;
+			cell_budget = (int) Math.min(cell_budget - 1, (long) cell_budget*max_triangles/n);
+		}
+	}
+
+	private static SimplifiedMesh adaptiveMesh(float[] z_values, int w, int h, double tolerance, int max_triangles, double pix_width, double pix_depth) {
+		SimplifiedMesh mesh = new SimplifiedMesh(z_values, w, h, pix_width, pix_depth);
+		int[] node_index = new int[w*h];
+		List<Cell> leaves = mesh.refine(tolerance, max_triangles, node_index);
+
+		// Vertices are the corners of the leaves, numbered in raster order
+		for (int j = 0; j < h; j++) {
+			for (int i = 0; i < w; i++) {
+				if (node_index[i + j*w] == 0) node_index[i + j*w] = mesh.addNode(i, j);
+			}
+		}
+
+		// A leaf is closed with two triangles, unless smaller neighbours put extra
+		// vertices on its edges. Then it becomes a fan around its center.
+		for (Cell c : leaves) {
+			int nb = mesh.ring(c, node_index);
+			if (nb == 4) {
+				int n00 = node_index[c.x0 + c.y0*w];
+				int n10 = node_index[c.x1 + c.y0*w];
+				int n01 = node_index[c.x0 + c.y1*w];
+				int n11 = node_index[c.x1 + c.y1*w];
+				mesh.addFace(n10, n00, n01);
+				mesh.addFace(n11, n10, n01);
+			} else {
+				int center = mesh.addNode(0.5*(c.x0 + c.x1), 0.5*(c.y0 + c.y1));
+				for (int k = 0; k < nb; k++) {
+					mesh.addFace(center, node_index[mesh.ring[k]], node_index[mesh.ring[(k+1) % nb]]);
+				}
+			}
+		}
+		return mesh.trim();
+	}
+
+	// Splits the cells with the largest error first. Once the queue is done, the leaves
+	// that smaller neighbours turn into fans are checked with their fan triangles, and
+	// split as well if these are not within the tolerance. Leaves the corners of the
+	// returned leaves marked (0, else -1) in node_index.
+	private List<Cell> refine(double tolerance, int max_triangles, int[] node_index) {
+		int root_size = 1;
+		while (root_size < Math.max(w-1, h-1)) root_size *= 2;
+
+		List<Cell> leaves = new ArrayList<Cell>();
+		PriorityQueue<Cell> queue = new PriorityQueue<Cell>();
+		if (w < 2 || h < 2) return leaves;
+		queue.add(newCell(0, 0, root_size));
+
+		boolean split_fans = true;
+		while (split_fans) {
+			while (!queue.isEmpty()) {
+				Cell c = queue.peek();
+				if (c.error <= tolerance || !withinBudget(queue.size() + leaves.size(), max_triangles)) break;
+				queue.poll();
+				if (c.size == 1) {
+					leaves.add(c);
+					continue;
+				}
+				split(c, queue);
+			}
+			leaves.addAll(queue);
+			queue.clear();
+
+			markCorners(leaves, node_index);
+			split_fans = false;
+			for (Iterator<Cell> it = leaves.iterator(); it.hasNext(); ) {
+				Cell c = it.next();
+				if (c.size == 1) continue;
+				int nb = ring(c, node_index);
+				if (nb == 4 || fanError(c, nb) <= tolerance) continue;
+				if (!withinBudget(queue.size() + leaves.size(), max_triangles)) break;
+				it.remove();
+				split(c, queue);
+				split_fans = true;
+			}
+		}
+		markCorners(leaves, node_index);
+
+		// Raster order, so that faces come out in the same order as in the full mesh
+		Collections.sort(leaves, new Comparator<Cell>() {
+			public int compare(Cell a, Cell b) {
+				return a.y0 != b.y0 ? Integer.compare(a.y0, b.y0) : Integer.compare(a.x0, b.x0);
+			}
+		});
+		return leaves;
+	}
+
+	// Whether splitting one more of the n cells keeps the mesh within the budget
+	private static boolean withinBudget(int n, int max_triangles) {
+		return max_triangles <= 0 || 2*(n + 3) <= max_triangles;
+	}
+
+	private void split(Cell c, PriorityQueue<Cell> queue) {
+		int half = c.size/2;
+		for (int k = 0; k < 4; k++) {
+			int cx0 = c.x0 + (k % 2)*half;
+			int cy0 = c.y0 + (k / 2)*half;
+			if (cx0 < w-1 && cy0 < h-1) queue.add(newCell(cx0, cy0, half));
+		}
+	}
+
+	private void markCorners(List<Cell> leaves, int[] node_index) {
+		Arrays.fill(node_index, -1);
+		for (Cell c : leaves) {
+			node_index[c.x0 + c.y0*w] = 0;
+			node_index[c.x1 + c.y0*w] = 0;
+			node_index[c.x0 + c.y1*w] = 0;
+			node_index[c.x1 + c.y1*w] = 0;
+		}
+	}
+
+	// Puts the pixel indices of the vertices on the edges of the cell in ring, counter-clockwise:
+	// down the left edge, along the bottom, up the right edge, back along the top. Returns their number.
+	private int ring(Cell c, int[] node_index) {
+		int nb = 0;
+		for (int j = c.y0; j < c.y1; j++) {
+			if (node_index[c.x0 + j*w] >= 0) ring = push(ring, nb++, c.x0 + j*w);
+		}
+		for (int i = c.x0; i < c.x1; i++) {
+			if (node_index[i + c.y1*w] >= 0) ring = push(ring, nb++, i + c.y1*w);
+		}
+		for (int j = c.y1; j > c.y0; j--) {
+			if (node_index[c.x1 + j*w] >= 0) ring = push(ring, nb++, c.x1 + j*w);
+		}
+		for (int i = c.x1; i > c.x0; i--) {
+			if (node_index[i + c.y0*w] >= 0) ring = push(ring, nb++, i + c.y0*w);
+		}
+		return nb;
+	}
+
+	private Cell newCell(int x0, int y0, int size) {
+		Cell c = new Cell();
+		c.x0 = x0;
+		c.y0 = y0;
+		c.x1 = Math.min(x0 + size, w-1);
+		c.y1 = Math.min(y0 + size, h-1);
+		c.size = size;
+
+		// Largest distance between the pixels and the two triangles the cell is closed with,
+		// which share the diagonal from (x1,y0) to (x0,y1)
+		double z00 = z_values[c.x0 + c.y0*w];
+		double z10 = z_values[c.x1 + c.y0*w];
+		double z01 = z_values[c.x0 + c.y1*w];
+		double z11 = z_values[c.x1 + c.y1*w];
+		double dx = c.x1 - c.x0;
+		double dy = c.y1 - c.y0;
+		double error = 0.0;
+		for (int j = c.y0; j <= c.y1; j++) {
+			double v = (j - c.y0)/dy;
+			for (int i = c.x0; i <= c.x1; i++) {
+				double u = (i - c.x0)/dx;
+				double z = u + v <= 1.0 ? z00 + (z10 - z00)*u + (z01 - z00)*v
+					: z11 + (z01 - z11)*(1 - u) + (z10 - z11)*(1 - v);
+				error = Math.max(error, Math.abs(z_values[i + j*w] - z));
+			}
+		}
+		c.error = error*pix_depth;
+		return c;
+	}
+
+	// Largest distance between the pixels of the cell and its fan around the center,
+	// with the nb vertices in ring
+	private double fanError(Cell c, int nb) {
+		double xc = 0.5*(c.x0 + c.x1);
+		double yc = 0.5*(c.y0 + c.y1);
+		double zc = interpolate(xc, yc);
+		double error = 0.0;
+		for (int k = 0; k < nb; k++) {
+			int a = ring[k];
+			int b = ring[(k+1) % nb];
+			error = Math.max(error, triangleError(xc, yc, zc, a % w, a / w, z_values[a], b % w, b / w, z_values[b]));
+		}
+		return error*pix_depth;
+	}
+
+	// Largest distance between the pixels inside the triangle (a, b, c) and its plane
+	private double triangleError(double xa, double ya, double za, double xb, double yb, double zb, double xc, double yc, double zc) {
+		double det = (xb - xa)*(yc - ya) - (xc - xa)*(yb - ya);
+		if (det == 0.0) return 0.0;
+		int i0 = (int) Math.ceil(Math.min(xa, Math.min(xb, xc)));
+		int i1 = (int) Math.floor(Math.max(xa, Math.max(xb, xc)));
+		int j0 = (int) Math.ceil(Math.min(ya, Math.min(yb, yc)));
+		int j1 = (int) Math.floor(Math.max(ya, Math.max(yb, yc)));
+		double error = 0.0;
+		for (int j = j0; j <= j1; j++) {
+			for (int i = i0; i <= i1; i++) {
+				// Barycentric coordinates of the pixel: (i,j) = a + s*(b-a) + t*(c-a)
+				double s = ((i - xa)*(yc - ya) - (xc - xa)*(j - ya))/det;
+				double t = ((xb - xa)*(j - ya) - (i - xa)*(yb - ya))/det;
+				if (s < -1e-9 || t < -1e-9 || s + t > 1 + 1e-9) continue;
+				double z = za + (zb - za)*s + (zc - za)*t;
+				error = Math.max(error, Math.abs(z_values[i + j*w] - z));
+			}
+		}
+		return error;
+	}
+
+	// Vertex at pixel coordinates (x,y), with the height interpolated between pixels if needed
+	private int addNode(double x, double y) {
+		return addNode(x, y, interpolate(x, y));
+	}
+
+	// Height at pixel coordinates (x,y), bilinear between pixels
+	private double interpolate(double x, double y) {
+		int i0 = (int) Math.floor(x);
+		int j0 = (int) Math.floor(y);
+		int i1 = Math.min(i0+1, w-1);
+		int j1 = Math.min(j0+1, h-1);
+		double u = x - i0;
+		double v = y - j0;
+		if (u == 0.0 && v == 0.0) return z_values[i0 + j0*w];
+		return (1-u)*(1-v)*z_values[i0 + j0*w] + u*(1-v)*z_values[i1 + j0*w]
+			+ (1-u)*v*z_values[i0 + j1*w] + u*v*z_values[i1 + j1*w];
+	}
+
+	private int addNode(double x, double y, double z) {
+		if (3*num_nodes + 3 > nodes.length) nodes = Arrays.copyOf(nodes, 2*nodes.length);
+		nodes[3*num_nodes] = (float) (x * pix_width);
+		nodes[3*num_nodes + 1] = (float) ((h-y-1) * pix_width);
+		nodes[3*num_nodes + 2] = (float) (z * pix_depth);
+		return num_nodes++;
+	}
+
+	private void addFace(int a, int b, int c) {
+		if (3*num_faces + 3 > faces.length) faces = Arrays.copyOf(faces, 2*faces.length);
+		faces[3*num_faces] = a;
+		faces[3*num_faces + 1] = b;
+		faces[3*num_faces + 2] = c;
+		num_faces++;
+	}
+
+	private SimplifiedMesh trim() {
+		nodes = Arrays.copyOf(nodes, 3*num_nodes);
+		faces = Arrays.copyOf(faces, 3*num_faces);
+		return this;
+	}
+
+	private static int[] push(int[] array, int n, int value) {
+		int[] result = n < array.length ? array : Arrays.copyOf(array, 2*array.length);
+		result[n] = value;
+		return result;
+	}
+
+	private static int[] gridLines(int n, int stride) {
+		stride = Math.max(stride, 1);
+		int count = (n-1)/stride + 1;
+		boolean add_last = (n-1) % stride != 0;
+		int[] lines = new int[count + (add_last ? 1 : 0)];
+		for (int k = 0; k < count; k++) lines[k] = k*stride;
+		if (add_last) lines[count] = n-1;
+		return lines;
+	}
+
+	// Quadtree cell spanning the pixels [x0,x1] x [y0,y1], ordered by decreasing error
+	private static class Cell implements Comparable<Cell> {
+		int x0, y0, x1, y1, size;
+		double error;
+
+		public int compareTo(Cell other) {
+			return Double.compare(other.error, error);
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package com.kysarlab.imagej;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ColorProcessor;
+
+// One slice of an image of any type, read as float values without converting the image.
+// The values are those ImageConverter.convertToGray32 would give: 8 and 16-bit pixels go
+// through the calibration table (if any), RGB pixels are converted to gray with the
+// weights of ImageJ's conversion options. 32-bit pixels are read as they are.
+// A view is made when its slice is needed (of() takes the pixels from the stack then, so
+// a virtual stack only loads that slice) and keeps nothing but these pixels: the values
+// are computed when they are read, so views should not be kept once the slice is done.
+abstract class SliceView {
+
+	final int size;
+
+	private SliceView(int size) {
+		this.size = size;
+	}
+
+	// Slice s (1-based) of the stack of imp
+	static SliceView of(ImagePlus imp, int s) {
+		Object pixels = imp.getStack().getPixels(s);
+		Calibration cal = imp.getCalibration();
+		float[] cTable = cal.calibrated() ? cal.getCTable() : null;
+		if (pixels instanceof float[]) return new FloatSlice((float[]) pixels);
+		if (pixels instanceof byte[]) {
+			return cTable == null ? new ByteSlice((byte[]) pixels) : new CalibratedByteSlice((byte[]) pixels, cTable);
+		}
+		if (pixels instanceof short[]) {
+			return cTable == null ? new ShortSlice((short[]) pixels) : new CalibratedShortSlice((short[]) pixels, cTable);
+		}
+		return new RGBSlice((int[]) pixels);
+	}
+
+	// The current slice of imp
+	static SliceView of(ImagePlus imp) {
+		return of(imp, imp.getCurrentSlice());
+	}
+
+	abstract float getf(int index);
+
+	// Values of the pixels [start, end) into dst, from dst[0] on
+	void read(int start, int end, float[] dst) {
+		for (int i=start; i < end; i++) dst[i-start] = getf(i);
+	}
+
+	// The whole slice: the pixels themselves for 32-bit slices (not to be modified),
+	// else the values written into buffer (allocated if null)
+	float[] getPixels(float[] buffer) {
+		if (buffer == null) buffer = new float[size];
+		read(0, size, buffer);
+		return buffer;
+	}
+
+	// The pixels themselves (not to be modified) if the slice is 32-bit, else null
+	float[] floatPixels() {
+		return null;
+	}
+
+	private static final class FloatSlice extends SliceView {
+		private final float[] pixels;
+
+		FloatSlice(float[] pixels) {
+			super(pixels.length);
+			this.pixels = pixels;
+		}
+
+		float getf(int index) {
+			return pixels[index];
+		}
+
+		void read(int start, int end, float[] dst) {
+			System.arraycopy(pixels, start, dst, 0, end-start);
+		}
+
+		float[] getPixels(float[] buffer) {
+			return pixels;
+		}
+
+		float[] floatPixels() {
+			return pixels;
+		}
+	}
+
+	private static final class ByteSlice extends SliceView {
+		private final byte[] pixels;
+
+		ByteSlice(byte[] pixels) {
+			super(pixels.length);
+			this.pixels = pixels;
+		}
+
+		float getf(int index) {
+			return pixels[index] & 0xff;
+		}
+
+		void read(int start, int end, float[] dst) {
+			for (int i=start; i < end; i++) dst[i-start] = pixels[i] & 0xff;
+		}
+	}
+
+	private static final class CalibratedByteSlice extends SliceView {
+		private final byte[] pixels;
+		private final float[] cTable;
+
+		CalibratedByteSlice(byte[] pixels, float[] cTable) {
+			super(pixels.length);
+			this.pixels = pixels;
+			this.cTable = cTable;
+		}
+
+		float getf(int index) {
+			return cTable[pixels[index] & 0xff];
+		}
+
+		void read(int start, int end, float[] dst) {
+			for (int i=start; i < end; i++) dst[i-start] = cTable[pixels[i] & 0xff];
+		}
+	}
+
+	private static final class ShortSlice extends SliceView {
+		private final short[] pixels;
+
+		ShortSlice(short[] pixels) {
+			super(pixels.length);
+			this.pixels = pixels;
+		}
+
+		float getf(int index) {
+			return pixels[index] & 0xffff;
+		}
+
+		void read(int start, int end, float[] dst) {
+			for (int i=start; i < end; i++) dst[i-start] = pixels[i] & 0xffff;
+		}
+	}
+
+	private static final class CalibratedShortSlice extends SliceView {
+		private final short[] pixels;
+		private final float[] cTable;
+
+		CalibratedShortSlice(short[] pixels, float[] cTable) {
+			super(pixels.length);
+			this.pixels = pixels;
+			this.cTable = cTable;
+		}
+
+		float getf(int index) {
+			return cTable[pixels[index] & 0xffff];
+		}
+
+		void read(int start, int end, float[] dst) {
+			for (int i=start; i < end; i++) dst[i-start] = cTable[pixels[i] & 0xffff];
+		}
+	}
+
+	// Same weighted sum as ColorProcessor.convertToFloat, pixel by pixel
+	private static final class RGBSlice extends SliceView {
+		private final int[] pixels;
+		private final double rw, gw, bw;
+
+		RGBSlice(int[] pixels) {
+			super(pixels.length);
+			this.pixels = pixels;
+			double[] weights = ColorProcessor.getWeightingFactors();
+			rw = weights[0];
+			gw = weights[1];
+			bw = weights[2];
+		}
+
+		float getf(int index) {
+			int c = pixels[index];
+			return (float) (((c & 0xff0000) >> 16)*rw + ((c & 0xff00) >> 8)*gw + (c & 0xff)*bw);
+		}
+	}
+}
@@ -9,14 +9,17 @@
 package com.kysarlab.imagej;
 
 import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
-import ij.gui.GenericDialog;
 import ij.measure.Calibration;
 import ij.plugin.PlugIn;
+import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
 import ij.process.FloatProcessor;
 
@@ -28,7 +31,7 @@ public class Smooth_NoBleed implements PlugIn {
 
 	// Overall Stack Properties
 	private Calibration cal;
-	private int num_pix_wide, num_pix_high;//, nSlices;
+	private int num_pix_wide, num_pix_high, nSlices;
 
     // Properties
     private static double RATIO = 0.5;
@@ -37,16 +40,27 @@ public class Smooth_NoBleed implements PlugIn {
     private int n_steps;
     private double sigma;
     private double a_fact; 
+    private String [] blur_engines = {"ImageJ Gaussian","Recursive Gaussian"};
+    private String theBlurEngine;
+    private int n_threads;
+    private boolean whole_stack;
+    private boolean smooth_3d;
 
 	// FUNCTIONS
 
-    // Shows dialog
-	private boolean showDialog() {
+    // Shows dialog (or reads the options, if any)
+	private boolean showDialog(String options) {
 		// specify fields in Dialog
-		GenericDialog gd = new GenericDialog("Smooth Without Bleeding properties");
+		Parameters gd = new Parameters("Smooth Without Bleeding properties", options);
 		gd.addNumericField("Background threshold", 0.0,   2);
 		gd.addNumericField("Number of Iterations", 4, 0);
 		gd.addNumericField("Standard Deviation (Smoothing)", 10.0, 2);
+		gd.addRadioButtonGroup("Blur engine:", blur_engines, 2, 1, blur_engines[0]);
+		gd.addNumericField("Threads", Prefs.getThreads(), 0);
+		if (nSlices > 1) {
+			gd.addCheckbox("Process all slices, channels and frames", false);
+			gd.addCheckbox("3D smoothing (recursive blur, Z scaled by the voxel depth)", false);
+		}
 		gd.showDialog();
 		if (gd.wasCanceled())
 			return false;
@@ -55,6 +69,10 @@ public class Smooth_NoBleed implements PlugIn {
 		back_threshold = (float) gd.getNextNumber();
 		n_steps = (int) gd.getNextNumber();
 		sigma = (double) gd.getNextNumber();
+		theBlurEngine = gd.getNextRadioButton();
+		n_threads = Math.max((int) gd.getNextNumber(), 1);
+		whole_stack = nSlices > 1 && gd.getNextBoolean();
+		smooth_3d = nSlices > 1 && gd.getNextBoolean();
         a_fact = sigma*Math.sqrt((1-RATIO)/(1-Math.pow(RATIO,n_steps))); //sqrt((1-R)/(1-R^N))
 		return true;
 	}	
@@ -66,134 +84,264 @@ public class Smooth_NoBleed implements PlugIn {
 		int[] imp_dim = imp.getDimensions();
 		num_pix_wide = imp_dim[0];
 		num_pix_high = imp_dim[1];
-		//nSlices = imp_dim[3];
+		nSlices = imp.getStackSize();
 	}
 
-    // Makes the mask image by setting to 1 everything below threshold and zero elsewhere
-    private void makeMask(float[] mask_pixels, float threshold){
-        int num_node = 0;
-		for(int j = 0; j < num_pix_high; j++){
-			for(int i = 0; i < num_pix_wide; i++) {
-                num_node = i + j * num_pix_wide;
-                if (mask_pixels[num_node]>threshold) {
-                    mask_pixels[num_node] = 0.0f;
-                } else {
-                    mask_pixels[num_node] = 1.0f;
-                }
-			}				
-		}
-    }
-
-
-    private void clearMask(float[] input_pixels, float[] mask_pixels) {
-        int num_node = 0;
-		for(int j = 0; j < num_pix_high; j++){
-			for(int i = 0; i < num_pix_wide; i++) {
-                num_node = i + j * num_pix_wide;
-                if (mask_pixels[num_node]==1.0f) input_pixels[num_node]=0.0f;
-			}				
-		}
+    // Each kernel below makes a single pass over the pixels. The mask is 1 outside
+    // (at or below the threshold) and 0 inside.
+
+    // Makes the mask, clears the outside of the result and sets the corrector to the mask.
+    // temp (if not null) gets a copy of the cleared result.
+    private void initPixels(float[] result_pixels, byte[] mask_pixels, float[] corrector_pixels, float[] temp_pixels) {
+        float threshold = back_threshold;
+        for (int k = 0; k < result_pixels.length; k++) {
+            if (result_pixels[k] > threshold) {
+                mask_pixels[k] = 0;
+                corrector_pixels[k] = 0.0f;
+            } else {
+                mask_pixels[k] = 1;
+                corrector_pixels[k] = 1.0f;
+                result_pixels[k] = 0.0f;
+            }
+            if (temp_pixels != null) temp_pixels[k] = result_pixels[k];
+        }
     }
 
-    private void multiplypixels(float[] inputA, float[] inputB, float[] output) {
-        int num_node = 0;
-		for(int j = 0; j < num_pix_high; j++){
-			for(int i = 0; i < num_pix_wide; i++) {
-                num_node = i + j * num_pix_wide;
-                output[num_node]=inputA[num_node]*inputB[num_node];
-			}				
-		}
+    // corrector = result * blurred mask, taken before the result is blurred
+    private void multiplyCorrector(float[] result_pixels, float[] corrector_pixels) {
+        for (int k = 0; k < result_pixels.length; k++) {
+            corrector_pixels[k] = result_pixels[k]*corrector_pixels[k];
+        }
     }
 
-    private void fixresult(float[] result_pixels, float[] temp_pixels, float[] mask_pixels) {
-        int num_node = 0;
-		for(int j = 0; j < num_pix_high; j++){
-			for(int i = 0; i < num_pix_wide; i++) {
-                num_node = i + j * num_pix_wide;
-                if (mask_pixels[num_node]==1.0f) {
-                    result_pixels[num_node]=0.0f;
-                } else {
-                    result_pixels[num_node]+=temp_pixels[num_node];
-                }
-			}				
-		}
+    // Adds the corrector to the blurred result, clears the outside and resets the
+    // corrector to the mask for the next iteration
+    private void fixResult(float[] result_pixels, float[] corrector_pixels, byte[] mask_pixels) {
+        for (int k = 0; k < result_pixels.length; k++) {
+            if (mask_pixels[k] != 0) {
+                result_pixels[k] = 0.0f;
+                corrector_pixels[k] = 1.0f;
+            } else {
+                result_pixels[k] += corrector_pixels[k];
+                corrector_pixels[k] = 0.0f;
+            }
+        }
     }
 
-    private void resetmask(float[] result_pixels, float[] mask_pixels, float[] backup_pixels) {
-        int num_node = 0;
-		for(int j = 0; j < num_pix_high; j++){
-			for(int i = 0; i < num_pix_wide; i++) {
-                num_node = i + j * num_pix_wide;
-                if (mask_pixels[num_node]==1.0f) {
-                    result_pixels[num_node]=backup_pixels[num_node];
-                }
-			}				
-		}
+    // Same, with the correction taken as temp * blurred mask (temp holds the result
+    // from before the blur); temp gets a copy of the new result
+    private void fixResult(float[] result_pixels, float[] corrector_pixels, float[] temp_pixels, byte[] mask_pixels) {
+        for (int k = 0; k < result_pixels.length; k++) {
+            if (mask_pixels[k] != 0) {
+                result_pixels[k] = 0.0f;
+                corrector_pixels[k] = 1.0f;
+            } else {
+                result_pixels[k] += temp_pixels[k]*corrector_pixels[k];
+                corrector_pixels[k] = 0.0f;
+            }
+            temp_pixels[k] = result_pixels[k];
+        }
     }
 
-    private void deepCopy(float[] source, float[] dest) {
-        int num_node = 0;
-		for(int j = 0; j < num_pix_high; j++){
-			for(int i = 0; i < num_pix_wide; i++) {
-                num_node = i + j * num_pix_wide;
-                dest[num_node]= source[num_node];
-			}				
-		}
+    // Puts back the input values outside, as convertToFloatProcessor gives them
+    private void resetMask(float[] result_pixels, byte[] mask_pixels, ImageProcessor img_p) {
+        float[] input_pixels = null;
+        if (img_p instanceof FloatProcessor) {
+            input_pixels = (float[]) img_p.getPixels();
+        } else if (img_p instanceof ColorProcessor) {
+            input_pixels = (float[]) img_p.convertToFloatProcessor().getPixels();
+        }
+        float[] cTable = img_p.getCalibrationTable();
+        for (int k = 0; k < result_pixels.length; k++) {
+            if (mask_pixels[k] == 0) continue;
+            if (input_pixels != null) {
+                result_pixels[k] = input_pixels[k];
+            } else {
+                result_pixels[k] = cTable != null ? cTable[(int) img_p.getf(k)] : img_p.getf(k);
+            }
+        }
     }
 
-
 	// When you click the button
     public void run(String arg) {
 
 		// Get the current image
 		imp = WindowManager.getCurrentImage(); // IJ.runPlugIn("Average_Height",""); ImagePlus avg_height = WindowManager.getImage("Average Height");
+		if (imp == null) {IJ.noImage(); return;}
 		// Get Image info
 		getInfo(imp);
-		// Get Image Processor
-        ImageProcessor img_p = imp.getProcessor();
 
 		// Run the dialog to get parameters and exits if cancelled
-		if (!showDialog()) {return;}
+		if (!showDialog(Parameters.getOptions(arg))) {return;}
+
+        process().show();
+	}
 
-        // Mask (1 outside, 0 inside)
-        ImageProcessor mask = img_p.convertToFloatProcessor();
-        float[] mask_pixels = (float[]) mask.getPixels();
-        makeMask(mask_pixels,back_threshold);
+	/**
+	 * Smooths an image without showing any dialog or window.
+	 *
+	 * @param imp the image (or stack) to smooth
+	 * @param options the parameters, as recorded by the macro recorder
+	 *   (e.g. "background=10 number=4 standard=5 threads=8"); missing ones take their default value
+	 * @return the smoothed image
+	 */
+	public ImagePlus process(ImagePlus imp, String options) {
+		this.imp = imp;
+		getInfo(imp);
+		showDialog(options == null ? "" : options);
+		return process();
+	}
+
+	private ImagePlus process() {
+        ImagePlus blurred_image;
+        if (smooth_3d) {
+            blurred_image = new ImagePlus("Selective Blur", smoothVolumes());
+            blurred_image.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+            if (imp.isHyperStack()) blurred_image.setOpenAsHyperStack(true);
+        } else if (whole_stack) {
+            blurred_image = new ImagePlus("Selective Blur", smoothStack(imp.getStack()));
+            blurred_image.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+            if (imp.isHyperStack()) blurred_image.setOpenAsHyperStack(true);
+        } else {
+            ParallelBands bands = new ParallelBands(n_threads);
+            try {
+                blurred_image = new ImagePlus("Selective Blur", smooth(imp.getProcessor(), new Scratch(), bands));
+            } finally {
+                bands.shutdown();
+            }
+        }
+		blurred_image.setCalibration(cal);
+        return blurred_image;
+	}
+
+    // Smooths all the slices of the stack on n_threads workers. Each worker takes a
+    // contiguous run of slices and keeps its scratch buffers from one slice to the next.
+    // ImageProcessor.blurGaussian already runs on all of ImageJ's threads, so with the
+    // ImageJ engine the slices are done one after the other instead.
+    private ImageStack smoothStack(ImageStack stack) {
+        ImageStack result = new ImageStack(num_pix_wide, num_pix_high, nSlices);
+        boolean imagej_engine = theBlurEngine.equals(blur_engines[0]);
+        ParallelBands slice_bands = new ParallelBands(imagej_engine ? 1 : Math.min(n_threads, nSlices));
+        // Threads left over when there are fewer slices than threads go to the blur
+        ParallelBands bands = new ParallelBands(Math.max(n_threads / nSlices, 1));
+        AtomicInteger done = new AtomicInteger();
+        try {
+            slice_bands.run(nSlices, slice_bands.getThreads(), (s0, s1) -> {
+                Scratch scratch = new Scratch();
+                for (int s = s0; s < s1; s++) {
+                    ImageProcessor img_p;
+                    synchronized (stack) {
+                        img_p = stack.getProcessor(s+1);
+                    }
+                    result.setPixels(smooth(img_p, scratch, bands).getPixels(), s+1);
+                    result.setSliceLabel(stack.getSliceLabel(s+1), s+1);
+                    IJ.showProgress(done.incrementAndGet(), nSlices);
+                }
+            });
+        } finally {
+            slice_bands.shutdown();
+            bands.shutdown();
+        }
+        return result;
+    }
 
-        // Allocate Corrector
-        ImageProcessor corrector = mask.convertToFloatProcessor();
-        float[] corrector_pixels = (float[]) corrector.getPixels();
+    // 3D smoothing of the Z-stack of each channel and frame. The volume goes through the
+    // same steps as an image with the ImageJ engine, which only needs the result and the
+    // corrector, blurred with blur3D. Sigma along Z is in slices: sigma*pixelWidth/pixelDepth.
+    private ImageStack smoothVolumes() {
+        int nc = imp.getNChannels(), nz = imp.getNSlices(), nt = imp.getNFrames();
+        int size = num_pix_wide*num_pix_high;
+        double z_scale = cal.pixelDepth > 0.0 ? cal.pixelWidth/cal.pixelDepth : 1.0;
+        ImageStack stack = imp.getStack();
+        ImageStack result = new ImageStack(num_pix_wide, num_pix_high, nSlices);
+
+        byte[][] mask_pixels = new byte[nz][size];
+        float[][] corrector_pixels = new float[nz][size];
+        float[][] result_pixels = new float[nz][];
+        ImageProcessor[] input = new ImageProcessor[nz];
+        ParallelBands bands = new ParallelBands(n_threads);
+        try {
+            for (int t = 1; t <= nt; t++) {
+                for (int c = 1; c <= nc; c++) {
+                    for (int z = 0; z < nz; z++) {
+                        input[z] = stack.getProcessor(imp.getStackIndex(c, z+1, t));
+                        result_pixels[z] = (float[]) input[z].convertToFloatProcessor().getPixels();
+                    }
+                    bands.run(nz, bands.defaultBands(nz), (z0, z1) -> {
+                        for (int z = z0; z < z1; z++) initPixels(result_pixels[z], mask_pixels[z], corrector_pixels[z], null);
+                    });
+
+                    for(int n = 0; n < n_steps; n++){
+                        double sigma = Math.sqrt(Math.pow(RATIO, n))*a_fact;
+                        RecursiveGaussian.blur3D(corrector_pixels, num_pix_wide, num_pix_high, sigma, sigma*z_scale, bands);
+                        bands.run(nz, bands.defaultBands(nz), (z0, z1) -> {
+                            for (int z = z0; z < z1; z++) multiplyCorrector(result_pixels[z], corrector_pixels[z]);
+                        });
+                        RecursiveGaussian.blur3D(result_pixels, num_pix_wide, num_pix_high, sigma, sigma*z_scale, bands);
+                        bands.run(nz, bands.defaultBands(nz), (z0, z1) -> {
+                            for (int z = z0; z < z1; z++) fixResult(result_pixels[z], corrector_pixels[z], mask_pixels[z]);
+                        });
+                        IJ.showProgress(((t-1)*nc + c-1)*n_steps + n+1, nt*nc*n_steps);
+                    }
+
+                    for (int z = 0; z < nz; z++) {
+                        int index = imp.getStackIndex(c, z+1, t);
+                        resetMask(result_pixels[z], mask_pixels[z], input[z]);
+                        result.setPixels(result_pixels[z], index);
+                        result.setSliceLabel(stack.getSliceLabel(index), index);
+                    }
+                }
+            }
+        } finally {
+            bands.shutdown();
+        }
+        return result;
+    }
 
-        // Final Result
-        ImageProcessor result = img_p.convertToFloatProcessor();
+    // Buffers that smooth() needs besides the result
+    private class Scratch {
+        final byte[] mask_pixels = new byte[num_pix_wide*num_pix_high];
+        final float[] corrector_pixels = new float[num_pix_wide*num_pix_high];
+        final FloatProcessor corrector = new FloatProcessor(num_pix_wide, num_pix_high, corrector_pixels);
+        float[] temp_pixels; // only for the recursive engine
+    }
+
+    // Smooths one image: the result only keeps the inside, and each blur is divided
+    // (through the corrector) by the blurred inside, so the outside does not bleed in
+    private FloatProcessor smooth(ImageProcessor img_p, Scratch scratch, ParallelBands bands) {
+        FloatProcessor result = img_p.convertToFloatProcessor();
         float[] result_pixels = (float[]) result.getPixels();
-        float[] temp_pixels = result_pixels.clone();
-        float[] backup_pixels = result_pixels.clone();
-        clearMask(result_pixels,mask_pixels);
+        byte[] mask_pixels = scratch.mask_pixels;
+        float[] corrector_pixels = scratch.corrector_pixels;
+        FloatProcessor corrector = scratch.corrector;
 
         double sigma = 1.0;
-        for(int n = 0; n < n_steps; n++){
-            sigma = Math.sqrt(Math.pow(RATIO, n))*a_fact;
-            deepCopy(mask_pixels,corrector_pixels);
-            corrector.blurGaussian(sigma);
-            multiplypixels(result_pixels,corrector_pixels,temp_pixels);
-            result.blurGaussian(sigma);
-            fixresult(result_pixels,temp_pixels,mask_pixels);
+        if (theBlurEngine.equals(blur_engines[1])) {
+            // The corrector and the result are blurred together, so the product
+            // is taken with the copy of the result made before the blur
+            if (scratch.temp_pixels == null) scratch.temp_pixels = new float[result_pixels.length];
+            float[] temp_pixels = scratch.temp_pixels;
+            initPixels(result_pixels, mask_pixels, corrector_pixels, temp_pixels);
+            float[][] blurred = {corrector_pixels, result_pixels};
+            for(int n = 0; n < n_steps; n++){
+                sigma = Math.sqrt(Math.pow(RATIO, n))*a_fact;
+                RecursiveGaussian.blur(blurred, num_pix_wide, num_pix_high, sigma, bands);
+                fixResult(result_pixels, corrector_pixels, temp_pixels, mask_pixels);
+            }
+        } else {
+            initPixels(result_pixels, mask_pixels, corrector_pixels, null);
+            for(int n = 0; n < n_steps; n++){
+                sigma = Math.sqrt(Math.pow(RATIO, n))*a_fact;
+                corrector.blurGaussian(sigma);
+                multiplyCorrector(result_pixels, corrector_pixels);
+                result.blurGaussian(sigma);
+                fixResult(result_pixels, corrector_pixels, mask_pixels);
+            }
         }
 
-        resetmask(result_pixels,mask_pixels,backup_pixels);
-        
-		ImagePlus blurred_image = new ImagePlus("Selective Blur",result);
-		blurred_image.setCalibration(cal);
-        blurred_image.show();
-        
-        // showPixels(result_pixels,"Result");
-        // showPixels(mask_pixels,"Mask");
-        // showPixels(backup_pixels,"Backup");
-        // showPixels(temp_pixels,"Temp");
-        // showPixels(corrector_pixels,"Corrector");
-
-	}
+        resetMask(result_pixels, mask_pixels, img_p);
+        return result;
+    }
 
     void showPixels (float[] pixels, String Title ) {
 		ImageProcessor ip = new FloatProcessor(num_pix_wide,num_pix_high,pixels);
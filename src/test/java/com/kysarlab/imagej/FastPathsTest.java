@@ -0,0 +1,225 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package com.kysarlab.imagej;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+// The threaded, multi-scale, all-slices, 3D and recursive blur paths, and the fit of
+// Gradual_Brightness, against the plain ones
+public class FastPathsTest {
+
+	@Test
+	public void flattenMembraneThreads() {
+		String options = "interpolation=[Monotone Cubic] minimum=10 maximum=255 standard=10 threads=";
+		Samples.assertMatches("Flatten_Membrane threads=4",
+			new Flatten_Membrane().process(Samples.open("TestFlattening.tif"), options + 4),
+			new Flatten_Membrane().process(Samples.open("TestFlattening.tif"), options + 1), 0.0);
+	}
+
+	// The stack is only read from one thread, once per slice and pass (average height,
+	// then each row band), as a virtual stack needs
+	@Test
+	public void flattenMembraneSliceReads() {
+		ImagePlus sample = Samples.open("TestFlattening.tif");
+		CountingStack stack = new CountingStack(sample.getStack());
+		ImagePlus imp = new ImagePlus("counted", stack);
+		imp.setCalibration(sample.getCalibration());
+		String options = "interpolation=[Monotone Cubic] minimum=10 maximum=255 standard=10 threads=8";
+		Samples.assertMatches("Flatten_Membrane counted stack", new Flatten_Membrane().process(imp, options),
+			new Flatten_Membrane().process(Samples.open("TestFlattening.tif"), options), 0.0);
+		assertEquals("Slice reads", 2*stack.getSize(), stack.reads.get());
+		assertEquals("Threads reading", 1, stack.threads.size());
+	}
+
+	@Test
+	public void averageHeightThreads() {
+		Samples.assertMatches("Average_Height threads=4",
+			new Average_Height().process(Samples.open("TestFlattening.tif"), "threads=4"),
+			new Average_Height().process(Samples.open("TestFlattening.tif"), "threads=1"), 0.0);
+	}
+
+	@Test
+	public void smoothNoBleedThreads() {
+		String options = "background=0 number=4 standard=10 threads=";
+		Samples.assertMatches("Smooth_NoBleed threads=4",
+			new Smooth_NoBleed().process(Samples.open("Circles_smudge.tif"), options + 4),
+			new Smooth_NoBleed().process(Samples.open("Circles_smudge.tif"), options + 1), 0.0);
+	}
+
+	// The recursive blur approximates the Gaussian kernel, and its edges are handled like
+	// ImageJ's: it may only differ from the ImageJ blur by the small errors of the
+	// approximation (the sample goes up to 255), near the edges as well as inside
+	@Test
+	public void smoothNoBleedRecursive() {
+		ImagePlus recursive = new Smooth_NoBleed().process(Samples.open("Circles_smudge.tif"),
+			"background=0 number=4 standard=10 blur=[Recursive Gaussian]");
+		ImagePlus imagej = new Smooth_NoBleed().process(Samples.open("Circles_smudge.tif"),
+			"background=0 number=4 standard=10 blur=[ImageJ Gaussian]");
+		Samples.assertClose("Smooth_NoBleed Recursive Gaussian", Samples.values(recursive), Samples.values(imagej), 1.5, 0.05);
+	}
+
+	// "Process all slices" smooths each slice as if it were run on that slice alone, with
+	// both engines, and keeps the labels and the hyperstack dimensions
+	@Test
+	public void smoothNoBleedAllSlices() {
+		ImagePlus imp = hyperstack();
+		for (String engine : new String[] {"ImageJ Gaussian", "Recursive Gaussian"}) {
+			String options = "background=0 number=4 standard=10 blur=[" + engine + "] threads=4";
+			ImagePlus all = new Smooth_NoBleed().process(imp, options + " process");
+			assertEquals(engine + " channels", 2, all.getNChannels());
+			assertEquals(engine + " slices", 3, all.getNSlices());
+			assertEquals(engine + " frames", 1, all.getNFrames());
+			assertTrue(engine + " hyperstack", all.isHyperStack());
+			for (int s=1; s <= imp.getStackSize(); s++) {
+				assertEquals(engine + " label " + s, imp.getStack().getSliceLabel(s), all.getStack().getSliceLabel(s));
+				ImagePlus slice = new ImagePlus("slice " + s, imp.getStack().getProcessor(s));
+				slice.setCalibration(imp.getCalibration());
+				Samples.assertMatches(engine + " slice " + s, new ImagePlus("", all.getStack().getProcessor(s)),
+					new Smooth_NoBleed().process(slice, options), 0.0);
+			}
+		}
+	}
+
+	// 3D smoothing of a volume that does not change along Z: each slice comes out as the
+	// 2D smoothing of the image (recursive engine), with the Z blur run recursively
+	// (voxels as deep as wide) and by convolution (sigma along Z below MIN_SIGMA)
+	@Test
+	public void smoothNoBleed3DConstantZ() {
+		ImageProcessor circles = Samples.open("Circles_smudge.tif").getProcessor();
+		String options = "background=0 number=4 standard=10 blur=[Recursive Gaussian] threads=4";
+		ImagePlus flat = new Smooth_NoBleed().process(new ImagePlus("circles", circles), options);
+		for (double depth : new double[] {1.0, 100.0}) {
+			ImageStack stack = new ImageStack(circles.getWidth(), circles.getHeight());
+			for (int z=0; z < 5; z++) stack.addSlice("z" + z, circles.duplicate());
+			ImagePlus volume = new ImagePlus("volume", stack);
+			volume.getCalibration().pixelDepth = depth;
+			ImagePlus smoothed = new Smooth_NoBleed().process(volume, options + " 3d");
+			for (int z=1; z <= 5; z++) {
+				Samples.assertMatches("depth " + depth + " slice " + z, new ImagePlus("", smoothed.getStack().getProcessor(z)), flat, 0.0);
+			}
+		}
+	}
+
+	// Sigma along Z is sigma*pixelWidth/pixelDepth slices: only the ratio counts, deeper
+	// voxels blur less along Z, and voxels too deep to reach the next slice (convolution
+	// with a kernel of one slice) leave each slice as smoothed in 2D
+	@Test
+	public void smoothNoBleed3DPixelDepth() {
+		String options = "background=0 number=4 standard=10 blur=[Recursive Gaussian] threads=4";
+		ImagePlus deep = smooth3D(1.0, 2.0, options), scaled = smooth3D(0.5, 1.0, options), cubic = smooth3D(1.0, 1.0, options);
+		assertEquals("channels", 2, deep.getNChannels());
+		assertEquals("slices", 3, deep.getNSlices());
+		assertTrue("hyperstack", deep.isHyperStack());
+		Samples.assertMatches("pixelDepth 2 against pixelWidth 0.5", scaled, deep, 0.0);
+		double[] a = Samples.values(deep), b = Samples.values(cubic);
+		double difference = 0.0;
+		for (int k=0; k < a.length; k++) difference = Math.max(difference, Math.abs(a[k] - b[k]));
+		assertTrue("pixelDepth 2 against 1: max difference " + difference, difference > 1.0);
+		Samples.assertMatches("pixelDepth 1e6", smooth3D(1.0, 1e6, options),
+			new Smooth_NoBleed().process(hyperstack(), options + " process"), 0.0);
+	}
+
+	private static ImagePlus smooth3D(double width, double depth, String options) {
+		ImagePlus imp = hyperstack();
+		imp.getCalibration().pixelWidth = width;
+		imp.getCalibration().pixelHeight = width;
+		imp.getCalibration().pixelDepth = depth;
+		return new Smooth_NoBleed().process(imp, options + " 3d");
+	}
+
+	// 16-bit hyperstack of 2 channels and 3 slices, made of the Circles_smudge sample
+	// scaled and moved differently in each slice
+	private static ImagePlus hyperstack() {
+		ImageProcessor circles = Samples.open("Circles_smudge.tif").getProcessor();
+		int w = circles.getWidth(), h = circles.getHeight();
+		ImageStack stack = new ImageStack(w, h);
+		for (int s=0; s < 6; s++) {
+			ImageProcessor ip = new ShortProcessor(w, h);
+			for (int j=0; j < h; j++) {
+				for (int i=0; i < w; i++) ip.setf(i, j, (s+1)*circles.getf((i + 3*s) % w, j));
+			}
+			stack.addSlice("c" + (s%2 + 1) + " z" + (s/2 + 1), ip);
+		}
+		ImagePlus imp = new ImagePlus("hyperstack", stack);
+		imp.setDimensions(2, 3, 1);
+		imp.setOpenAsHyperStack(true);
+		return imp;
+	}
+
+	@Test
+	public void curvatureThreads() {
+		String options = "method=[Satelite Points] pixel=3 threads=";
+		Samples.assertMatches("Curvature threads=4",
+			new Curvature().process(Samples.open("avg-height-example.tif"), options + 4),
+			new Curvature().process(Samples.open("avg-height-example.tif"), options + 1), 0.0);
+	}
+
+	@Test
+	public void curvatureScales() {
+		ImagePlus scales = new Curvature().process(Samples.open("avg-height-example.tif"), "method=[Satelite Points] scales=2,3 threads=1");
+		Samples.assertMatches("Curvature scales=2,3",
+			new ImagePlus("scale 3", scales.getStack().getProcessor(2)),
+			new Curvature().process(Samples.open("avg-height-example.tif"), "method=[Satelite Points] pixel=3 threads=1"), 0.0);
+	}
+
+	// Fit A and B: the 5% percentile of the slices follows the curve exactly, so the fit
+	// finds its coefficients, and the stack comes out as with the fitted ones entered by hand
+	@Test
+	public void gradualBrightnessFit() {
+		assertFit("Linear: A + Bx", 16, 100.0, 7.0, 1e-9);
+		assertFit("Power: Ax^B", 32, 50.0, 0.5, 1e-5);
+	}
+
+	private static void assertFit(String method, int bitDepth, double a, double b, double tolerance) {
+		ImagePlus imp = IJ.createImage(method, bitDepth + "-bit black", 64, 64, 20);
+		for (int s=1; s <= 20; s++) {
+			double value = method.startsWith("Linear") ? a + b*s : a*Math.pow(s, b);
+			ImageProcessor ip = imp.getStack().getProcessor(s);
+			// A tenth of the pixels on the curve, the others above it
+			for (int k=0; k < 64*64; k++) ip.setf(k, (float) (value + 3*(k % 10)));
+		}
+		Gradual_Brightness fitted = new Gradual_Brightness();
+		ImagePlus out = fitted.process(imp, "fitting=[" + method + "] fit percentile=5 max=100");
+		assertEquals(method + " A", a, fitted.getA(), tolerance*a);
+		assertEquals(method + " B", b, fitted.getB(), tolerance*Math.abs(b));
+		Samples.assertMatches(method + " fitted", out,
+			new Gradual_Brightness().process(imp, "fitting=[" + method + "] a=" + fitted.getA() + " b=" + fitted.getB() + " max=100"), 0.0);
+	}
+
+	// Stack that counts the slices read, and the threads reading them
+	private static class CountingStack extends ImageStack {
+		final AtomicInteger reads = new AtomicInteger();
+		final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+		CountingStack(ImageStack stack) {
+			super(stack.getWidth(), stack.getHeight());
+			for (int s=1; s <= stack.getSize(); s++) addSlice(stack.getSliceLabel(s), stack.getPixels(s));
+		}
+
+		@Override
+		public Object getPixels(int n) {
+			reads.incrementAndGet();
+			threads.add(Thread.currentThread());
+			return super.getPixels(n);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package com.kysarlab.imagej;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+
+// The plugins only write their own output: the type, calibration and pixels of their
+// input stay as they were
+public class InputUnchangedTest {
+
+	private interface Plugin {
+		void run(ImagePlus imp) throws IOException;
+	}
+
+	@Test
+	public void flattenMembrane() throws IOException {
+		assertUnchanged("Flatten_Membrane", "TestFlattening.tif", imp -> new Flatten_Membrane().process(imp, "minimum=10 maximum=255"));
+	}
+
+	@Test
+	public void averageHeight() throws IOException {
+		assertUnchanged("Average_Height", "TestFlattening.tif", imp -> new Average_Height().process(imp));
+	}
+
+	@Test
+	public void gradualBrightness() throws IOException {
+		assertUnchanged("Gradual_Brightness", "TestFlattening.tif", imp ->
+			new Gradual_Brightness().process(imp, "fitting=[Linear: A + Bx] a=20 b=1 max=-1"));
+	}
+
+	@Test
+	public void smoothNoBleed() throws IOException {
+		assertUnchanged("Smooth_NoBleed", "Circles_smudge.tif", imp -> new Smooth_NoBleed().process(imp, ""));
+	}
+
+	@Test
+	public void curvature() throws IOException {
+		assertUnchanged("Curvature", "TBT.tif", imp -> new Curvature().process(imp, "pixel=1"));
+	}
+
+	@Test
+	public void makePLY() throws IOException {
+		assertUnchanged("Make_PLY", "TBT.tif", imp -> {
+			File file = File.createTempFile("input-unchanged", ".ply");
+			try {
+				new Make_PLY().process(imp, "save=[" + file.getPath() + "]");
+			} finally {
+				file.delete();
+			}
+		});
+	}
+
+	private static void assertUnchanged(String name, String sample, Plugin plugin) throws IOException {
+		ImagePlus imp = Samples.open(sample), original = Samples.open(sample);
+		plugin.run(imp);
+		assertEquals(name + " input", describe(original), describe(imp));
+		Samples.assertClose(name + " input", Samples.values(imp), Samples.values(original), 0.0, 0.0);
+	}
+
+	private static String describe(ImagePlus imp) {
+		return Samples.shape(imp) + "x" + imp.getBitDepth() + " " + imp.getCalibration();
+	}
+}
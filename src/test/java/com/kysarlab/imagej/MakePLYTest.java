@@ -0,0 +1,202 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package com.kysarlab.imagej;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+// PLY files written by Make_PLY, against the files shipped with the samples
+// (avg-height-example_out_bin.ply, ...): header counts, then all the numbers.
+// The simplified meshes are checked for holes, overlaps and their triangle budget.
+public class MakePLYTest {
+
+	private static final String[] SAMPLES = {"avg-height-example", "TBT"};
+
+	@Test
+	public void binary() throws IOException {
+		for (String sample : SAMPLES) {
+			assertPly(sample + " binary", sample, "ply=[Binary Little Endian] threads=1", sample + "_out_bin.ply", 0.0);
+		}
+	}
+
+	// The ASCII files differ in the formatting of the numbers only
+	@Test
+	public void ascii() throws IOException {
+		for (String sample : SAMPLES) {
+			assertPly(sample + " ASCII", sample, "ply=ASCII", sample + "_out_txt.ply", 1e-3);
+		}
+	}
+
+	@Test
+	public void notStreamed() throws IOException {
+		for (String sample : SAMPLES) {
+			assertPly(sample + " not streamed", sample, "ply=[Binary Little Endian] build", sample + "_out_bin.ply", 0.0);
+		}
+	}
+
+	// The full resolution mesh, as a fixed stride of 1
+	@Test
+	public void strideOne() throws IOException {
+		for (String sample : SAMPLES) {
+			assertPly(sample + " stride 1", sample, "ply=[Binary Little Endian] mesh=[Fixed stride] stride=1", sample + "_out_bin.ply", 0.0);
+		}
+	}
+
+	@Test
+	public void simplifiedMeshesAreClosed() {
+		float[] z = surface(W, H);
+		assertClosed("full", SimplifiedMesh.byStride(z, W, H, 1, 0.5, 2.0), W, H, 0.5);
+		assertClosed("stride 4", SimplifiedMesh.byStride(z, W, H, 4, 0.5, 2.0), W, H, 0.5);
+		assertClosed("adaptive", SimplifiedMesh.adaptive(z, W, H, 0.05, 0, 0.5, 2.0), W, H, 0.5);
+	}
+
+	@Test
+	public void adaptiveBudget() {
+		float[] z = surface(W, H);
+		for (int budget : new int[] {2, 10, 50, 200, 1000}) {
+			SimplifiedMesh mesh = SimplifiedMesh.adaptive(z, W, H, 0.0, budget, 0.5, 2.0);
+			int faces = mesh.faces.length/3;
+			assertTrue("budget " + budget + ": " + faces + " faces", faces <= budget);
+			assertClosed("budget " + budget, mesh, W, H, 0.5);
+		}
+	}
+
+	// Synthetic height map, neither square nor a power of two plus one, so that the
+	// quadtree has cut cells and neighbours of different sizes
+	private static final int W = 45, H = 30;
+
+	private static float[] surface(int w, int h) {
+		Random random = new Random(42);
+		float[] z = new float[w*h];
+		for (int j=0; j < h; j++) {
+			for (int i=0; i < w; i++) {
+				z[i + j*w] = (float) (10*Math.sin(0.3*i)*Math.cos(0.2*j) + 0.5*random.nextGaussian());
+			}
+		}
+		return z;
+	}
+
+	// The faces cover the image rectangle once, counter-clockwise seen from above: each
+	// edge inside is shared by exactly two faces in opposite directions, the others are on
+	// the border, and the areas add up to the rectangle
+	private static void assertClosed(String name, SimplifiedMesh mesh, int w, int h, double pix_width) {
+		float[] nodes = mesh.nodes;
+		int[] faces = mesh.faces;
+		double width = (w-1)*pix_width, height = (h-1)*pix_width;
+		Set<Long> edges = new HashSet<Long>();
+		double area = 0.0;
+		for (int f=0; f < faces.length; f += 3) {
+			double face_area = 0.0;
+			for (int k=0; k < 3; k++) {
+				int a = faces[f+k], b = faces[f + (k+1)%3];
+				assertTrue(name + ": edge " + a + "-" + b + " used twice", edges.add(((long) a << 32) | b));
+				face_area += 0.5*(nodes[3*a]*nodes[3*b+1] - nodes[3*b]*nodes[3*a+1]);
+			}
+			assertTrue(name + ": face " + f/3 + " not counter-clockwise", face_area > 0.0);
+			area += face_area;
+		}
+		for (long edge : edges) {
+			int a = (int) (edge >>> 32), b = (int) edge;
+			if (edges.contains(((long) b << 32) | a)) continue;
+			double xa = nodes[3*a], ya = nodes[3*a+1], xb = nodes[3*b], yb = nodes[3*b+1];
+			boolean border = (xa == xb && (xa == 0.0 || xa == width)) || (ya == yb && (ya == 0.0 || ya == height));
+			assertTrue(name + ": open edge " + a + "-" + b + " inside the image", border);
+		}
+		assertEquals(name + ": area", width*height, area, 1e-6*width*height);
+	}
+
+	private static void assertPly(String name, String sample, String options, String golden, double tolerance) throws IOException {
+		File file = File.createTempFile("make-ply", ".ply");
+		try {
+			new Make_PLY().process(Samples.open(sample + ".tif"), options + " save=[" + file.getPath() + "]");
+			Ply out = new Ply(file), ref = new Ply(Samples.resource("/" + golden));
+			assertEquals(name, ref.shape(), out.shape());
+			Samples.assertClose(name, out.values, ref.values, tolerance, Double.POSITIVE_INFINITY);
+		} finally {
+			file.delete();
+		}
+	}
+
+	// Vertices and faces of a PLY file, in either format, as one list of numbers
+	private static class Ply {
+		int vertices, faces;
+		double[] values;
+
+		Ply(File file) throws IOException {
+			try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+				boolean binary = false;
+				for (String line = readLine(in); !line.equals("end_header"); line = readLine(in)) {
+					if (line.startsWith("format")) binary = line.contains("binary_little_endian");
+					else if (line.startsWith("element vertex")) vertices = Integer.parseInt(line.substring(15).trim());
+					else if (line.startsWith("element face")) faces = Integer.parseInt(line.substring(13).trim());
+				}
+				values = new double[3*vertices + 4*faces];
+				if (binary) readBinary(new DataInputStream(in));
+				else readASCII(new String(readAll(in), StandardCharsets.US_ASCII).trim().split("\\s+"));
+			}
+		}
+
+		String shape() {
+			return vertices + " vertices, " + faces + " faces";
+		}
+
+		private void readBinary(DataInputStream in) throws IOException {
+			byte[] bytes = new byte[13];
+			ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+			int k = 0;
+			for (int v=0; v < vertices; v++) {
+				in.readFully(bytes, 0, 12);
+				for (int c=0; c < 3; c++) values[k++] = buffer.getFloat(4*c);
+			}
+			for (int f=0; f < faces; f++) {
+				in.readFully(bytes, 0, 13);
+				values[k++] = bytes[0] & 0xff;
+				for (int c=0; c < 3; c++) values[k++] = buffer.getInt(1 + 4*c);
+			}
+			assertTrue("Data after the last face", in.read() < 0);
+		}
+
+		private void readASCII(String[] tokens) {
+			assertEquals("Numbers in the file", values.length, tokens.length);
+			for (int k=0; k < tokens.length; k++) values[k] = Double.parseDouble(tokens[k]);
+		}
+
+		private static String readLine(InputStream in) throws IOException {
+			StringBuilder line = new StringBuilder();
+			for (int c = in.read(); c != '\n'; c = in.read()) {
+				if (c < 0) throw new IOException("No end_header");
+				if (c != '\r') line.append((char) c);
+			}
+			return line.toString().trim();
+		}
+
+		private static byte[] readAll(InputStream in) throws IOException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			for (int n = in.read(buffer); n > 0; n = in.read(buffer)) out.write(buffer, 0, n);
+			return out.toByteArray();
+		}
+	}
+}
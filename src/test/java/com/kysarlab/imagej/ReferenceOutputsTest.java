@@ -0,0 +1,102 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package com.kysarlab.imagej;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+// Outputs of the plugins on the samples, against the reference outputs of
+// src/test/resources/reference. These were made once, with the original version of
+// each algorithm run through its dialog with the same values as the options here: the
+// first version of the plugins for Average_Height, Flatten_Membrane (Linear and
+// Monotone Cubic), Smooth_NoBleed, Curvature (Satelite Points) and Gradual_Brightness,
+// and the version that added them for the Catmull-Rom and Akima interpolations and
+// Gradient Based curvature. They are not to be recorded again from the current code.
+public class ReferenceOutputsTest {
+
+	@Test
+	public void averageHeight() {
+		ImagePlus imp = new Average_Height().process(Samples.open("TestFlattening.tif"));
+		Samples.assertMatches("Average_Height", imp, Samples.reference("Average_Height_TestFlattening"), 0.0);
+	}
+
+	@Test
+	public void flattenMembrane() {
+		for (String method : Interpolator.METHODS) {
+			ImagePlus imp = new Flatten_Membrane().process(Samples.open("TestFlattening.tif"), "interpolation=[" + method
+				+ "] minimum=10 maximum=255 standard=10 threads=1");
+			Samples.assertMatches("Flatten_Membrane " + method, imp,
+				Samples.reference("Flatten_Membrane_TestFlattening_" + method.replace(' ', '_')), 0.0);
+		}
+	}
+
+	@Test
+	public void smoothNoBleed() {
+		ImagePlus imp = new Smooth_NoBleed().process(Samples.open("Circles_smudge.tif"), "background=0 number=4 standard=10 threads=1");
+		Samples.assertMatches("Smooth_NoBleed", imp, Samples.reference("Smooth_NoBleed_Circles_smudge"), 0.0);
+	}
+
+	@Test
+	public void sateliteCurvature() {
+		assertRadii("Curvature avg-height-example", new Curvature().process(Samples.open("avg-height-example.tif"),
+			"method=[Satelite Points] pixel=3 threads=1"), Samples.reference("Curvature_avg-height-example_Satelite_Points"));
+		assertRadii("Curvature TBT", new Curvature().process(Samples.open("TBT.tif"),
+			"method=[Satelite Points] pixel=1 threads=1"), Samples.reference("Curvature_TBT_Satelite_Points"));
+	}
+
+	@Test
+	public void gradientCurvature() {
+		ImagePlus imp = new Curvature().process(Samples.open("avg-height-example.tif"), "method=[Gradient Based] gradient=2 threads=1");
+		Samples.assertMatches("Curvature Gradient Based", imp, Samples.reference("Curvature_avg-height-example_Gradient_Based"), 0.0);
+	}
+
+	@Test
+	public void gradualBrightness() {
+		ImagePlus imp = new Gradual_Brightness().process(Samples.open("TestFlattening.tif"), "fitting=[Linear: A + Bx] a=20 b=1 max=-1");
+		assertEquals(8, imp.getBitDepth());
+		Samples.assertMatches("Gradual_Brightness", imp, Samples.reference("Gradual_Brightness_TestFlattening"), 0.0);
+	}
+
+	// 32-bit slices on an exponential curve, whose offsets reach 9e6 (where floats are
+	// 1 apart), each normalized to its own maximum (max=-1). The reference is the double
+	// normalization of the first version, given the maximum of each slice: that version
+	// took the display range of the stack instead. The float path may differ by one ulp.
+	@Test
+	public void gradualBrightness32bit() {
+		ImageStack stack = new ImageStack(32, 32);
+		for (int s=1; s <= 8; s++) {
+			float[] pixels = new float[32*32];
+			double min = Math.exp(2.0*s);
+			for (int k=0; k < pixels.length; k++) pixels[k] = (float) (min + 0.01*(k % 1000));
+			stack.addSlice("slice " + s, pixels);
+		}
+		ImagePlus imp = new Gradual_Brightness().process(new ImagePlus("offsets", stack), "fitting=[Exponential: Ae^(Bx)] a=1 b=2 max=-1");
+		assertEquals(32, imp.getBitDepth());
+		Samples.assertMatches("Gradual_Brightness 32-bit", imp, Samples.reference("Gradual_Brightness_32-bit_offsets"), 1.2e-7);
+	}
+
+	// The first version meant to leave out the radius of aligned satellites, but tested
+	// for it with == Double.NaN, so these pixels are NaN in the reference. There, the
+	// radius must be a number up to the 1e10 cap; everywhere else the same as the reference.
+	private static void assertRadii(String name, ImagePlus imp, ImagePlus reference) {
+		assertEquals(name + " shape", Samples.shape(reference), Samples.shape(imp));
+		double[] values = Samples.values(imp), expected = Samples.values(reference);
+		for (int k=0; k < values.length; k++) {
+			if (!Double.isNaN(expected[k])) continue;
+			assertTrue(name + " pixel " + k + ": " + values[k], values[k] > 0.0 && values[k] <= 1.0E10);
+			expected[k] = values[k];
+		}
+		Samples.assertClose(name, values, expected, 0.0, 0.0);
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * To the extent possible under law, the ImageJ developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package com.kysarlab.imagej;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Locale;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+// Inputs and comparisons shared by the tests: the sample images of src/main/resources
+// and the reference outputs of src/test/resources/reference
+final class Samples {
+
+	private Samples() {}
+
+	static ImagePlus open(String name) {
+		ImagePlus imp = IJ.openImage(resource("/" + name).getPath());
+		assertNotNull("Cannot open " + name, imp);
+		return imp;
+	}
+
+	static ImagePlus reference(String name) {
+		return open("reference/" + name + ".tif");
+	}
+
+	static File resource(String path) {
+		URL url = Samples.class.getResource(path);
+		assertNotNull("Missing resource " + path, url);
+		try {
+			return new File(url.toURI());
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String shape(ImagePlus imp) {
+		return imp.getWidth() + "x" + imp.getHeight() + "x" + imp.getStackSize();
+	}
+
+	// All the pixel values (calibrated), slice after slice
+	static double[] values(ImagePlus imp) {
+		ImageStack stack = imp.getStack();
+		int n = imp.getWidth()*imp.getHeight();
+		double[] values = new double[n*stack.getSize()];
+		for (int s=1; s <= stack.getSize(); s++) {
+			float[] pixels = (float[]) stack.getProcessor(s).convertToFloatProcessor().getPixels();
+			for (int k=0; k < n; k++) values[(s-1)*n + k] = pixels[k];
+		}
+		return values;
+	}
+
+	static void assertMatches(String name, ImagePlus imp, ImagePlus reference, double tolerance) {
+		assertEquals(name + " shape", shape(reference), shape(imp));
+		assertClose(name, values(imp), values(reference), tolerance, Double.POSITIVE_INFINITY);
+	}
+
+	// Largest absolute error within tolerance, mean absolute error within mean_tolerance.
+	// NaN only matches NaN.
+	static void assertClose(String name, double[] values, double[] reference, double tolerance, double mean_tolerance) {
+		assertEquals(name + " size", reference.length, values.length);
+		double max = 0.0, sum = 0.0;
+		for (int k=0; k < values.length; k++) {
+			double a = values[k], b = reference[k];
+			double error = Double.isNaN(a) || Double.isNaN(b) ? (Double.isNaN(a) == Double.isNaN(b) ? 0.0 : Double.POSITIVE_INFINITY) : Math.abs(a - b);
+			max = Math.max(max, error);
+			sum += error;
+		}
+		double mean = values.length == 0 ? 0.0 : sum/values.length;
+		String errors = String.format(Locale.ROOT, "%s: max error %.4g (tolerance %.4g), mean error %.4g (tolerance %.4g)",
+			name, max, tolerance, mean, mean_tolerance);
+		assertTrue(errors, max <= tolerance && mean <= mean_tolerance);
+	}
+}